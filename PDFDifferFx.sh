@@ -87,5 +87,5 @@ done
 
 export LD_LIBRARY_PATH=$EXECUTABLEPATH:$LD_LIBRARY_PATH
 export CLASSPATH
-java $JAVA_OPTS de.schrell.pdftools.PdfDifferMain $ARGUMENTS
+java $JAVA_OPTS de.schrell.pdftools.PdfDifferLauncher $ARGUMENTS
 exit $?
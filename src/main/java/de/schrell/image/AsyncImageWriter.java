@@ -0,0 +1,232 @@
+package de.schrell.image;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes images as PNG on a few background threads, so that encoding and disk
+ * I/O overlap with the rendering and diffing of the next pages. The queue is
+ * bounded: when it is full, the caller writes the image itself, which keeps
+ * the number of images waiting in memory small. The caller also writes images
+ * given after {@link #close()}, so that every returned future completes.
+ *
+ * The PNG files are encoded here rather than by ImageIO, whose PNG writer on
+ * Java 8 always uses its slow default deflate level.
+ */
+public class AsyncImageWriter implements AutoCloseable {
+
+    /** pixels kept around the differences when cropping */
+    private static final int CROP_MARGIN = 16;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private final ThreadPoolExecutor writers;
+
+    /** deflate level of the image data */
+    private final int level;
+
+    /**
+     * @param threads number of writer threads
+     * @param quality PNG compression quality from 0 for the smallest to 1 for
+     *            the fastest files, like the PNG writer of ImageIO since Java
+     *            9; negative for the default deflate level
+     */
+    public AsyncImageWriter(final int threads, final float quality) {
+        this.level = quality < 0 ? Deflater.DEFAULT_COMPRESSION
+            : Math.round(Deflater.BEST_COMPRESSION * (1 - Math.min(quality, 1)));
+        final AtomicInteger threadNo = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(2 * threads), runnable -> {
+                final Thread thread = new Thread(runnable, "PDFDiffer-Writer-" + threadNo.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, (task, executor) -> task.run());
+    }
+
+    /**
+     * writes the image, the image must not be changed until it is given to
+     * release
+     *
+     * @param crop true to write only the region around the differences of a
+     *            diff image from {@link ImageDiffer}
+     * @param release called with the image when it has been written or could
+     *            not be written
+     * @return the region of the image in the file, null if the image has no
+     *         differences to crop to and nothing was written
+     */
+    public Future<Rectangle> write(final BufferedImage image, final File file, final boolean crop,
+        final Consumer<BufferedImage> release) {
+        return this.writers.submit(() -> {
+            try {
+                final Rectangle region = crop ? getDiffBounds(image, CROP_MARGIN)
+                    : new Rectangle(0, 0, image.getWidth(), image.getHeight());
+                if (region != null) {
+                    this.writePng(image.getSubimage(region.x, region.y, region.width, region.height), file);
+                }
+                return region;
+            } finally {
+                release.accept(image);
+            }
+        });
+    }
+
+    /**
+     * writes the image with 8 bits per sample and without filtering: images
+     * with a palette as indexed, gray images as gray, all others as RGB or,
+     * if they have alpha, RGBA
+     */
+    private void writePng(final BufferedImage image, final File file) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final IndexColorModel palette = image.getColorModel() instanceof IndexColorModel
+            && image.getColorModel().getTransparency() == Transparency.OPAQUE
+            && image.getRaster().getNumBands() == 1 ? (IndexColorModel) image.getColorModel() : null;
+        final boolean gray = image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        final boolean alpha = palette == null && !gray && image.getColorModel().hasAlpha();
+        final boolean packed = image.getType() == BufferedImage.TYPE_INT_RGB
+            || image.getType() == BufferedImage.TYPE_INT_ARGB;
+        final int colorType = palette != null ? 3 : gray ? 0 : alpha ? 6 : 2;
+        final int channels = palette != null || gray ? 1 : alpha ? 4 : 3;
+        final int[] pixels = new int[width];
+        final byte[] row = new byte[1 + width * channels];
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(this.level);
+        try (DeflaterOutputStream zip = new DeflaterOutputStream(data, deflater, 1 << 16)) {
+            for (int y = 0; y < height; y++) {
+                if (channels == 1) {
+                    image.getRaster().getPixels(0, y, width, 1, pixels);
+                    for (int x = 0; x < width; x++) {
+                        row[1 + x] = (byte) pixels[x];
+                    }
+                } else {
+                    if (packed) {
+                        image.getRaster().getDataElements(0, y, width, 1, pixels);
+                    } else {
+                        image.getRGB(0, y, width, 1, pixels, 0, width);
+                    }
+                    int i = 1;
+                    for (final int pixel : pixels) {
+                        row[i++] = (byte) (pixel >>> 16);
+                        row[i++] = (byte) (pixel >>> 8);
+                        row[i++] = (byte) pixel;
+                        if (alpha) {
+                            row[i++] = (byte) (pixel >>> 24);
+                        }
+                    }
+                }
+                zip.write(row);
+            }
+        } finally {
+            deflater.end();
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(PNG_SIGNATURE);
+            final ByteArrayOutputStream header = new ByteArrayOutputStream();
+            final DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(width);
+            headerOut.writeInt(height);
+            headerOut.writeByte(8);
+            headerOut.writeByte(colorType);
+            headerOut.writeByte(0);
+            headerOut.writeByte(0);
+            headerOut.writeByte(0);
+            writeChunk(out, "IHDR", header.toByteArray());
+            if (palette != null) {
+                final byte[] colors = new byte[3 * palette.getMapSize()];
+                for (int c = 0; c < palette.getMapSize(); c++) {
+                    colors[3 * c] = (byte) palette.getRed(c);
+                    colors[3 * c + 1] = (byte) palette.getGreen(c);
+                    colors[3 * c + 2] = (byte) palette.getBlue(c);
+                }
+                writeChunk(out, "PLTE", colors);
+            }
+            writeChunk(out, "IDAT", data.toByteArray());
+            writeChunk(out, "IEND", new byte[0]);
+        }
+    }
+
+    private static void writeChunk(final DataOutputStream out, final String type, final byte[] data)
+        throws IOException {
+        final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the bounding box of the diff coloured pixels, enlarged by the
+     *         margin and clipped to the image, or null if there are none
+     */
+    static Rectangle getDiffBounds(final BufferedImage diff, final int margin) {
+        final int width = diff.getWidth();
+        final int height = diff.getHeight();
+        final int red = Color.RED.getRGB();
+        final int[] row = new int[width];
+        int minX = width;
+        int maxX = -1;
+        int minY = height;
+        int maxY = -1;
+        for (int y = 0; y < height; y++) {
+            diff.getRGB(0, y, width, 1, row, 0, width);
+            int x = 0;
+            while (x < width && row[x] != red) {
+                x++;
+            }
+            if (x == width) {
+                continue;
+            }
+            minX = Math.min(minX, x);
+            x = width - 1;
+            while (row[x] != red) {
+                x--;
+            }
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = y;
+        }
+        if (maxY < 0) {
+            return null;
+        }
+        final Rectangle bounds = new Rectangle(minX - margin, minY - margin,
+            maxX - minX + 1 + 2 * margin, maxY - minY + 1 + 2 * margin);
+        return bounds.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * waits until all images are written, if interrupted only sets the
+     * interrupt flag again
+     */
+    @Override
+    public void close() {
+        this.writers.shutdown();
+        try {
+            this.writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package de.schrell.image;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pixels of an image that take part in a comparison: inside one of the
+ * include rectangles (or anywhere, if there are none) and outside all ignore
+ * rectangles. Rows covered by the same rectangles share their row masks.
+ */
+public class DiffMask {
+
+    private final int width;
+
+    private final List<Rectangle> includes;
+
+    private final List<Rectangle> ignores;
+
+    /** one bit per include and ignore rectangle, set if it covers the row */
+    private long[] cover;
+
+    private long[] lastCover;
+
+    private byte[] lastRow;
+
+    private byte[] lastPackedRow;
+
+    public DiffMask(final int width, final List<Rectangle> includes, final List<Rectangle> ignores) {
+        this.width = width;
+        this.includes = new ArrayList<>(includes);
+        this.ignores = new ArrayList<>(ignores);
+        final int words = (includes.size() + ignores.size() + 63) >>> 6;
+        this.cover = new long[words];
+        this.lastCover = new long[words];
+    }
+
+    /**
+     * @return one byte per pixel of row y, 1 for compared pixels, 0 for
+     *         masked ones
+     */
+    public byte[] row(final int y) {
+        this.update(y);
+        return this.lastRow;
+    }
+
+    /**
+     * @return the row as bits, first pixel in the highest bit, like a
+     *         TYPE_BYTE_BINARY raster
+     */
+    public byte[] packedRow(final int y) {
+        this.update(y);
+        if (this.lastPackedRow == null) {
+            final byte[] packed = new byte[(this.width + 7) >>> 3];
+            for (int x = 0; x < this.width; x++) {
+                if (this.lastRow[x] != 0) {
+                    packed[x >>> 3] |= 0x80 >>> (x & 7);
+                }
+            }
+            this.lastPackedRow = packed;
+        }
+        return this.lastPackedRow;
+    }
+
+    private void update(final int y) {
+        final long[] cover = this.cover;
+        Arrays.fill(cover, 0);
+        int bit = 0;
+        for (final Rectangle rect : this.includes) {
+            set(cover, bit++, y >= rect.y && y < rect.y + rect.height);
+        }
+        for (final Rectangle rect : this.ignores) {
+            set(cover, bit++, y >= rect.y && y < rect.y + rect.height);
+        }
+        if (this.lastRow != null && Arrays.equals(cover, this.lastCover)) {
+            return;
+        }
+        final byte[] row = new byte[this.width];
+        boolean included = this.includes.isEmpty();
+        bit = 0;
+        for (final Rectangle rect : this.includes) {
+            if (get(cover, bit++)) {
+                included = true;
+                fill(row, rect, (byte) 1);
+            }
+        }
+        if (this.includes.isEmpty()) {
+            fill(row, new Rectangle(0, 0, this.width, 1), (byte) 1);
+        }
+        if (included) {
+            for (final Rectangle rect : this.ignores) {
+                if (get(cover, bit++)) {
+                    fill(row, rect, (byte) 0);
+                }
+            }
+        }
+        this.cover = this.lastCover;
+        this.lastCover = cover;
+        this.lastRow = row;
+        this.lastPackedRow = null;
+    }
+
+    private static void set(final long[] bits, final int bit, final boolean value) {
+        if (value) {
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean get(final long[] bits, final int bit) {
+        return (bits[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    private void fill(final byte[] row, final Rectangle rect, final byte value) {
+        final int from = Math.max(0, rect.x);
+        final int to = Math.min(this.width, rect.x + rect.width);
+        for (int x = from; x < to; x++) {
+            row[x] = value;
+        }
+    }
+
+}
@@ -2,28 +2,103 @@ package de.schrell.image;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Collections;
 
 public class ImageDiffer {
 
+    /** set -Dpdfdiffer.diff.scalar=true to compare RGB images with getRGB only */
+    private static final boolean SCALAR_ONLY = Boolean.getBoolean("pdfdiffer.diff.scalar");
+
+    /** index of the diff colour in the gray palette, lightened grays use 127..255 */
+    private static final int GRAY_RED_INDEX = 0;
+
+    private static final IndexColorModel GRAY_DIFF_MODEL = createGrayDiffModel();
+
+    private static final IndexColorModel BINARY_DIFF_MODEL = createBinaryDiffModel();
+
+    private static final byte[] GRAY_LIGHTEN = createGrayLighten();
+
+    private static final int[] BIT_SPREAD = createBitSpread();
+
+    /** source of the diff image or null */
+    private final ImagePool pool;
+
     private final BufferedImage diffImage;
 
-    private boolean hasDiffs;
+    private long diffCount;
 
     public ImageDiffer(final BufferedImage oldImage, final BufferedImage newImage) {
-        this.diffImage = this.diffImage(oldImage, newImage);
+        this(oldImage, newImage, null);
+    }
+
+    /**
+     * compares only the pixels selected by the mask, masked pixels are shown
+     * lightened like equal ones
+     */
+    public ImageDiffer(final BufferedImage oldImage, final BufferedImage newImage, final DiffMask mask) {
+        this(oldImage, newImage, mask, null);
+    }
+
+    /**
+     * takes the diff image from the pool, give it back with
+     * {@link ImagePool#release(BufferedImage)} when it is no longer needed
+     *
+     * @throws IllegalArgumentException if the images differ in size
+     */
+    public ImageDiffer(final BufferedImage oldImage, final BufferedImage newImage, final DiffMask mask,
+        final ImagePool pool) {
+        if (oldImage.getWidth() != newImage.getWidth() || oldImage.getHeight() != newImage.getHeight()) {
+            throw new IllegalArgumentException("Bilder unterschiedlich groß: " + oldImage.getWidth() + "x"
+                + oldImage.getHeight() + " und " + newImage.getWidth() + "x" + newImage.getHeight());
+        }
+        this.pool = pool;
+        this.diffImage = this.diffImage(oldImage, newImage, mask != null ? mask
+            : new DiffMask(oldImage.getWidth(), Collections.emptyList(), Collections.emptyList()));
+    }
+
+    private BufferedImage diffImage(final BufferedImage biOld, final BufferedImage biNew, final DiffMask mask) {
+        if (biOld.getType() == biNew.getType()
+            && biOld.getWidth() == biNew.getWidth()
+            && biOld.getHeight() == biNew.getHeight()) {
+            switch (biOld.getType()) {
+                case BufferedImage.TYPE_BYTE_GRAY:
+                    return this.diffGray(biOld, biNew, mask);
+                case BufferedImage.TYPE_BYTE_BINARY:
+                    if (biOld.getColorModel().getPixelSize() == 1) {
+                        return this.diffBinary(biOld, biNew, mask);
+                    }
+                    break;
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                    if (!SCALAR_ONLY) {
+                        return this.diffPacked(biOld, biNew, mask);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return this.diffRgb(biOld, biNew, mask);
     }
 
-    private BufferedImage diffImage(final BufferedImage biOld, final BufferedImage biNew) {
-        final BufferedImage biDiff = new BufferedImage(biOld.getWidth(), biOld.getHeight(), biOld.getType());
+    private BufferedImage diffRgb(final BufferedImage biOld, final BufferedImage biNew, final DiffMask mask) {
+        final BufferedImage biDiff = this.createImage(biOld.getWidth(), biOld.getHeight(), biOld.getType(), null);
         final int red = Color.RED.getRGB();
-        for (int x = 0; x < biOld.getWidth(); x++) {
-            for (int y = 0; y < biOld.getHeight(); y++) {
+        for (int y = 0; y < biOld.getHeight(); y++) {
+            final byte[] compare = mask.row(y);
+            for (int x = 0; x < biOld.getWidth(); x++) {
                 final int cOld = biOld.getRGB(x,y);
                 final int cNew = biNew.getRGB(x,y);
-                if (cOld == cNew) {
+                if (cOld == cNew || compare[x] == 0) {
                     biDiff.setRGB(x, y, lighten(new Color(cOld), 0.5).getRGB());
                 } else {
-                    this.hasDiffs = true;
+                    this.diffCount++;
                     biDiff.setRGB(x, y, red);
                 }
             }
@@ -31,6 +106,181 @@ public class ImageDiffer {
         return biDiff;
     }
 
+    /**
+     * Int per pixel kernel working on the raster arrays. The loop body is
+     * branch free (compare, lighten and select by masks) so that the JIT can
+     * vectorize it. The lightening is the same as {@link #lighten(Color, double)}
+     * with 0.5: every channel below 128 gets 127 added, all others become 255.
+     */
+    private BufferedImage diffPacked(final BufferedImage biOld, final BufferedImage biNew, final DiffMask mask) {
+        final int width = biOld.getWidth();
+        final int height = biOld.getHeight();
+        final int type = biOld.getType();
+        final BufferedImage biDiff = this.createImage(width, height, type, null);
+        final int[] pOld = ((DataBufferInt) biOld.getRaster().getDataBuffer()).getData();
+        final int[] pNew = ((DataBufferInt) biNew.getRaster().getDataBuffer()).getData();
+        final int[] pDiff = ((DataBufferInt) biDiff.getRaster().getDataBuffer()).getData();
+        final int strideOld = ((SinglePixelPackedSampleModel) biOld.getSampleModel()).getScanlineStride();
+        final int strideNew = ((SinglePixelPackedSampleModel) biNew.getSampleModel()).getScanlineStride();
+        final int strideDiff = ((SinglePixelPackedSampleModel) biDiff.getSampleModel()).getScanlineStride();
+        final int compareMask = type == BufferedImage.TYPE_INT_ARGB ? 0xFFFFFFFF : 0x00FFFFFF;
+        final int alpha = type == BufferedImage.TYPE_INT_ARGB ? 0xFF000000 : 0;
+        final int red = Color.RED.getRGB() & (alpha | 0x00FFFFFF);
+        long count = 0;
+        for (int y = 0; y < height; y++) {
+            final int rowOld = y * strideOld;
+            final int rowNew = y * strideNew;
+            final int rowDiff = y * strideDiff;
+            final byte[] compare = mask.row(y);
+            int rowCount = 0;
+            for (int x = 0; x < width; x++) {
+                final int cOld = pOld[rowOld + x];
+                final int xor = (cOld ^ pNew[rowNew + x]) & compareMask;
+                // -1 for a difference in a compared pixel, 0 otherwise
+                final int diff = ((xor | -xor) >> 31) & -compare[x];
+                final int saturated = ((cOld >>> 7) & 0x010101) * 0xFF;
+                final int light = alpha | ((cOld & 0x7F7F7F) + 0x7F7F7F) | saturated;
+                pDiff[rowDiff + x] = (light & ~diff) | (red & diff);
+                rowCount -= diff;
+            }
+            count += rowCount;
+        }
+        this.diffCount = count;
+        return biDiff;
+    }
+
+    /**
+     * Byte per pixel kernel. The result is an indexed image of the same size
+     * whose palette holds the lightened grays and red.
+     */
+    private BufferedImage diffGray(final BufferedImage biOld, final BufferedImage biNew, final DiffMask mask) {
+        final int width = biOld.getWidth();
+        final int height = biOld.getHeight();
+        final BufferedImage biDiff = this.createImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, GRAY_DIFF_MODEL);
+        final byte[] pOld = ((DataBufferByte) biOld.getRaster().getDataBuffer()).getData();
+        final byte[] pNew = ((DataBufferByte) biNew.getRaster().getDataBuffer()).getData();
+        final byte[] pDiff = ((DataBufferByte) biDiff.getRaster().getDataBuffer()).getData();
+        final int strideOld = ((ComponentSampleModel) biOld.getSampleModel()).getScanlineStride();
+        final int strideNew = ((ComponentSampleModel) biNew.getSampleModel()).getScanlineStride();
+        final int strideDiff = ((ComponentSampleModel) biDiff.getSampleModel()).getScanlineStride();
+        long count = 0;
+        for (int y = 0; y < height; y++) {
+            final int rowOld = y * strideOld;
+            final int rowNew = y * strideNew;
+            final int rowDiff = y * strideDiff;
+            final byte[] compare = mask.row(y);
+            for (int x = 0; x < width; x++) {
+                final byte cOld = pOld[rowOld + x];
+                if (cOld == pNew[rowNew + x] || compare[x] == 0) {
+                    pDiff[rowDiff + x] = GRAY_LIGHTEN[cOld & 0xFF];
+                } else {
+                    count++;
+                    pDiff[rowDiff + x] = GRAY_RED_INDEX;
+                }
+            }
+        }
+        this.diffCount = count;
+        return biDiff;
+    }
+
+    /**
+     * Bit packed kernel: XOR of eight pixels at once, differences are counted
+     * with a popcount. The result is a 2 bit indexed image, so each source
+     * byte expands to two result bytes.
+     */
+    private BufferedImage diffBinary(final BufferedImage biOld, final BufferedImage biNew, final DiffMask mask) {
+        final int width = biOld.getWidth();
+        final int height = biOld.getHeight();
+        final BufferedImage biDiff = this.createImage(width, height, BufferedImage.TYPE_BYTE_BINARY, BINARY_DIFF_MODEL);
+        final byte[] pOld = ((DataBufferByte) biOld.getRaster().getDataBuffer()).getData();
+        final byte[] pNew = ((DataBufferByte) biNew.getRaster().getDataBuffer()).getData();
+        final byte[] pDiff = ((DataBufferByte) biDiff.getRaster().getDataBuffer()).getData();
+        final int strideOld = ((MultiPixelPackedSampleModel) biOld.getSampleModel()).getScanlineStride();
+        final int strideNew = ((MultiPixelPackedSampleModel) biNew.getSampleModel()).getScanlineStride();
+        final int strideDiff = ((MultiPixelPackedSampleModel) biDiff.getSampleModel()).getScanlineStride();
+        final int rowBytes = (width + 7) >>> 3;
+        long count = 0;
+        for (int y = 0; y < height; y++) {
+            final int rowOld = y * strideOld;
+            final int rowNew = y * strideNew;
+            final int rowDiff = y * strideDiff;
+            // the packed mask also clears the padding bits of the last byte
+            final byte[] compare = mask.packedRow(y);
+            for (int i = 0; i < rowBytes; i++) {
+                final int bOld = pOld[rowOld + i] & 0xFF;
+                final int xor = (bOld ^ pNew[rowNew + i]) & compare[i] & 0xFF;
+                count += Integer.bitCount(xor);
+                // palette index per pixel: 2 for a difference, else the old bit
+                final int packed = (BIT_SPREAD[xor] << 1) | BIT_SPREAD[bOld & ~xor];
+                final int out = rowDiff + 2 * i;
+                pDiff[out] = (byte) (packed >>> 8);
+                if (2 * i + 1 < strideDiff) {
+                    pDiff[out + 1] = (byte) packed;
+                }
+            }
+        }
+        this.diffCount = count;
+        return biDiff;
+    }
+
+    /**
+     * the kernels write every pixel, so a pooled image need not be cleared
+     */
+    private BufferedImage createImage(final int width, final int height, final int type,
+        final IndexColorModel colorModel) {
+        if (this.pool != null) {
+            return colorModel == null ? this.pool.acquire(width, height, type)
+                : this.pool.acquire(width, height, type, colorModel);
+        }
+        return colorModel == null ? new BufferedImage(width, height, type)
+            : new BufferedImage(width, height, type, colorModel);
+    }
+
+    private static IndexColorModel createGrayDiffModel() {
+        final byte[] r = new byte[256];
+        final byte[] g = new byte[256];
+        final byte[] b = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            r[i] = (byte) i;
+            g[i] = (byte) i;
+            b[i] = (byte) i;
+        }
+        r[GRAY_RED_INDEX] = (byte) 255;
+        g[GRAY_RED_INDEX] = 0;
+        b[GRAY_RED_INDEX] = 0;
+        return new IndexColorModel(8, 256, r, g, b);
+    }
+
+    private static IndexColorModel createBinaryDiffModel() {
+        final int black = lighten(Color.BLACK, 0.5).getRed();
+        final byte[] r = { (byte) black, (byte) 255, (byte) 255, (byte) 255 };
+        final byte[] g = { (byte) black, (byte) 255, 0, 0 };
+        final byte[] b = { (byte) black, (byte) 255, 0, 0 };
+        return new IndexColorModel(2, 4, r, g, b);
+    }
+
+    private static byte[] createGrayLighten() {
+        final byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            final Color gray = new Color(i, i, i);
+            table[i] = (byte) lighten(gray, 0.5).getRed();
+        }
+        return table;
+    }
+
+    /** moves bit k of a byte to bit 2k */
+    private static int[] createBitSpread() {
+        final int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int spread = 0;
+            for (int k = 0; k < 8; k++) {
+                spread |= ((i >>> k) & 1) << (2 * k);
+            }
+            table[i] = spread;
+        }
+        return table;
+    }
+
     public static Color lighten(final Color inColor, final double inAmount)
     {
       return new Color(
@@ -45,7 +295,11 @@ public class ImageDiffer {
     }
 
     public boolean hasDiffs() {
-        return this.hasDiffs;
+        return this.diffCount > 0;
+    }
+
+    public long getDiffCount() {
+        return this.diffCount;
     }
 
 }
@@ -0,0 +1,103 @@
+package de.schrell.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+/**
+ * Reusable images, so that page sized rasters are not allocated for every
+ * page. Images are grouped by size, type and colour model; pages of a
+ * document mostly share one size. An acquired image has undefined content
+ * and should be given back with {@link #release(BufferedImage)} when it is
+ * no longer used. Images that are never given back are simply collected.
+ */
+public class ImagePool {
+
+    private static class Key {
+
+        final int width;
+
+        final int height;
+
+        final int type;
+
+        /** only for indexed images with a given palette, compared by identity */
+        final IndexColorModel colorModel;
+
+        Key(final int width, final int height, final int type, final IndexColorModel colorModel) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.colorModel = colorModel;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.width == other.width && this.height == other.height && this.type == other.type
+                && this.colorModel == other.colorModel;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.width, this.height, this.type, System.identityHashCode(this.colorModel));
+        }
+
+    }
+
+    private final int maxIdlePerSize;
+
+    private final Map<Key, Deque<BufferedImage>> idle = new HashMap<>();
+
+    /** images handed out by this pool, weak so that lost ones do not leak */
+    private final Map<BufferedImage, Key> acquired = new WeakHashMap<>();
+
+    /**
+     * @param maxIdlePerSize number of unused images kept per size
+     */
+    public ImagePool(final int maxIdlePerSize) {
+        this.maxIdlePerSize = maxIdlePerSize;
+    }
+
+    public BufferedImage acquire(final int width, final int height, final int type) {
+        return this.acquire(new Key(width, height, type, null));
+    }
+
+    public BufferedImage acquire(final int width, final int height, final int type, final IndexColorModel colorModel) {
+        return this.acquire(new Key(width, height, type, colorModel));
+    }
+
+    private synchronized BufferedImage acquire(final Key key) {
+        final Deque<BufferedImage> images = this.idle.get(key);
+        BufferedImage image = images == null ? null : images.poll();
+        if (image == null) {
+            image = key.colorModel == null ? new BufferedImage(key.width, key.height, key.type)
+                : new BufferedImage(key.width, key.height, key.type, key.colorModel);
+        }
+        this.acquired.put(image, key);
+        return image;
+    }
+
+    /**
+     * gives an image back, images not acquired from this pool are ignored
+     */
+    public synchronized void release(final BufferedImage image) {
+        final Key key = image == null ? null : this.acquired.remove(image);
+        if (key == null) {
+            return;
+        }
+        final Deque<BufferedImage> images = this.idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+        if (images.size() < this.maxIdlePerSize) {
+            images.push(image);
+        }
+    }
+
+}
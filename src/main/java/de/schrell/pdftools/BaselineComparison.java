@@ -0,0 +1,270 @@
+package de.schrell.pdftools;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compares one baseline document with many variants without user interface.
+ * Every page of the baseline is rendered once and compared with the same
+ * page of all variants in parallel; the baseline page is given back when the
+ * last variant is done with it. The result is a matrix of page verdicts:
+ *
+ * <pre>
+ * java -jar PdfDiffer.jar --baseline=basis.pdf [--render=..] [--mask=..] [--export=verzeichnis [--export-crop]] variante1.pdf variante2.pdf ...
+ * </pre>
+ *
+ * With --export the diff images of differing pages are saved, see
+ * {@link DiffExport}.
+ */
+@SuppressWarnings("nls")
+class BaselineComparison implements AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(BaselineComparison.class);
+
+    /** baseline pages rendered ahead of the comparisons */
+    private static final int PAGES_AHEAD = 2;
+
+    private final List<String> variants;
+
+    private final PdfImager baseline;
+
+    private final List<PdfImager> imagers = new ArrayList<>();
+
+    private final List<PdfComparator> comparators = new ArrayList<>();
+
+    private final ExecutorService workers;
+
+    BaselineComparison(final String baseline, final List<String> variants, final RenderMode mode,
+        final RegionMasks masks) throws IOException {
+        this.variants = variants;
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final CompletableFuture<PdfImager> baselineImager = this.open(baseline, mode);
+        final List<CompletableFuture<PdfImager>> variantImagers = new ArrayList<>();
+        for (final String variant : variants) {
+            variantImagers.add(this.open(variant, mode));
+        }
+        try {
+            this.baseline = baselineImager.get();
+            for (final CompletableFuture<PdfImager> variantImager : variantImagers) {
+                final PdfImager imager = variantImager.get();
+                this.imagers.add(imager);
+                this.comparators.add(new PdfComparator(this.baseline, imager, masks));
+            }
+        } catch (final InterruptedException | ExecutionException e) {
+            this.close();
+            throw new IOException("Fehler beim Öffnen der PDF-Dateien", e);
+        }
+    }
+
+    private CompletableFuture<PdfImager> open(final String pdf, final RenderMode mode) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return new PdfImager(pdf, mode);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, this.workers);
+    }
+
+    /**
+     * saves the diff images of all variants, named after the variants
+     */
+    void exportDiffs(final DiffExport export) {
+        for (int v = 0; v < this.variants.size(); v++) {
+            this.comparators.get(v).exportDiffs(export,
+                (v + 1) + "-" + Paths.get(this.variants.get(v)).getFileName().toString());
+        }
+    }
+
+    /**
+     * @return the verdicts indexed by page and variant, null where neither
+     *         the baseline nor the variant has the page
+     */
+    PageVerdict[][] compare() throws IOException, InterruptedException {
+        int pages = this.baseline.getNumberOfPages();
+        for (final PdfImager imager : this.imagers) {
+            pages = Math.max(pages, imager.getNumberOfPages());
+        }
+        final PageVerdict[][] verdicts = new PageVerdict[pages][this.variants.size()];
+        final List<Future<?>> jobs = new ArrayList<>();
+        final Semaphore ahead = new Semaphore(PAGES_AHEAD);
+        for (int page = 0; page < pages; page++) {
+            final int n = page;
+            final BufferedImage biBaseline;
+            if (page < this.baseline.getNumberOfPages()) {
+                ahead.acquire();
+                biBaseline = this.comparators.get(0).renderOld(page);
+            } else {
+                biBaseline = null;
+            }
+            final AtomicInteger consumers = new AtomicInteger(this.variants.size());
+            for (int variant = 0; variant < this.variants.size(); variant++) {
+                final int v = variant;
+                jobs.add(this.workers.submit(() -> {
+                    try {
+                        if (n < this.baseline.getNumberOfPages() || n < this.imagers.get(v).getNumberOfPages()) {
+                            verdicts[n][v] = this.comparators.get(v).compare(n, biBaseline);
+                        }
+                        return null;
+                    } finally {
+                        if (consumers.decrementAndGet() == 0 && biBaseline != null) {
+                            this.comparators.get(0).releaseOld(biBaseline);
+                            ahead.release();
+                        }
+                    }
+                }));
+            }
+        }
+        for (final Future<?> job : jobs) {
+            try {
+                job.get();
+            } catch (final ExecutionException e) {
+                // the result is lost anyway, jobs not started yet need not run
+                for (final Future<?> other : jobs) {
+                    other.cancel(false);
+                }
+                throw new IOException("Fehler beim Vergleich", e.getCause());
+            }
+        }
+        return verdicts;
+    }
+
+    /**
+     * writes the matrix with one row per page and one column per variant
+     *
+     * @return true if all variants match the baseline
+     */
+    boolean report(final PageVerdict[][] verdicts, final PrintStream out) {
+        final boolean[] same = new boolean[this.variants.size()];
+        final StringBuilder header = new StringBuilder("page");
+        for (int v = 0; v < this.variants.size(); v++) {
+            header.append('\t').append(this.variants.get(v));
+            same[v] = true;
+        }
+        out.println(header);
+        for (int page = 0; page < verdicts.length; page++) {
+            final StringBuilder line = new StringBuilder().append(page + 1);
+            for (int v = 0; v < this.variants.size(); v++) {
+                final PageVerdict verdict = verdicts[page][v];
+                line.append('\t');
+                if (verdict == null) {
+                    line.append('-');
+                } else {
+                    line.append(verdict.verdict);
+                    if (verdict.verdict == Verdict.DIFF) {
+                        line.append(' ').append(verdict.diffCount);
+                    }
+                    same[v] &= verdict.isSame();
+                }
+            }
+            out.println(line);
+        }
+        final StringBuilder result = new StringBuilder("result");
+        boolean allSame = true;
+        for (int v = 0; v < this.variants.size(); v++) {
+            result.append('\t').append(same[v] ? Verdict.SAME : Verdict.DIFF);
+            allSame &= same[v];
+        }
+        out.println(result);
+        return allSame;
+    }
+
+    /**
+     * waits for running jobs, they still render from the documents and may
+     * add to the export, then closes the documents
+     */
+    @Override
+    public void close() {
+        this.workers.shutdown();
+        try {
+            this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.workers.shutdownNow();
+        }
+        for (final PdfImager imager : this.imagers) {
+            closeQuietly(imager);
+        }
+        if (this.baseline != null) {
+            closeQuietly(this.baseline);
+        }
+    }
+
+    private static void closeQuietly(final PdfImager imager) {
+        try {
+            imager.close();
+        } catch (final Exception e) {
+            LOGGER.warn("Fehler beim Schließen", e);
+        }
+    }
+
+    /**
+     * runs the comparison for the command line arguments
+     *
+     * @return the exit code, 0 if all variants match, 1 if not, 2 on errors
+     */
+    static int run(final String[] args) {
+        String baseline = null;
+        String render = null;
+        String maskFile = null;
+        String exportDir = null;
+        boolean crop = false;
+        final List<String> variants = new ArrayList<>();
+        for (final String arg : args) {
+            if (arg.startsWith("--baseline=")) {
+                baseline = arg.substring("--baseline=".length());
+            } else if (arg.startsWith("--render=")) {
+                render = arg.substring("--render=".length());
+            } else if (arg.startsWith("--mask=")) {
+                maskFile = arg.substring("--mask=".length());
+            } else if (arg.startsWith("--export=")) {
+                exportDir = arg.substring("--export=".length());
+            } else if (arg.equals("--export-crop")) {
+                crop = true;
+            } else if (!arg.startsWith("--")) {
+                variants.add(arg);
+            }
+        }
+        if (baseline == null || variants.isEmpty()) {
+            LOGGER.error("Aufruf: java -jar PdfDiffer.jar --baseline=basis.pdf [--render=RGB|GRAY|BINARY] "
+                + "[--mask=regionen.txt] [--export=verzeichnis [--export-crop]] variante1.pdf variante2.pdf ...");
+            return 2;
+        }
+        final long start = System.currentTimeMillis();
+        // closed in reverse order, the comparison waits for its jobs before the export writes its index
+        try (DiffExport export = exportDir == null ? null : new DiffExport(exportDir, crop, "index");
+            BaselineComparison comparison = new BaselineComparison(baseline, variants,
+                PdfDifferMain.getRenderMode(render), maskFile == null ? null : RegionMasks.load(maskFile))) {
+            if (export != null) {
+                comparison.exportDiffs(export);
+            }
+            final boolean same = comparison.report(comparison.compare(), System.out);
+            LOGGER.info("compared " + baseline + " with " + variants.size() + " variants in "
+                + (System.currentTimeMillis() - start) + " ms");
+            return same ? 0 : 1;
+        } catch (final IOException e) {
+            LOGGER.error("Fehler beim Vergleich", e);
+            return 2;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 2;
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package de.schrell.pdftools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.schrell.image.AsyncImageWriter;
+
+/**
+ * Saves the diff images of differing pages for audit, as PNG files in one
+ * directory together with an index as JSON and HTML. The images are written
+ * by an {@link AsyncImageWriter}; the index is written by {@link #close()}
+ * when all images are done. The indexes of several exports into one
+ * directory can be combined with {@link #combine(String, List, String)}.
+ *
+ * The number of writer threads and the PNG compression quality can be set by
+ * -Dpdfdiffer.export.writers and -Dpdfdiffer.export.quality.
+ */
+@SuppressWarnings("nls")
+class DiffExport implements AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(DiffExport.class);
+
+    /** one page of a JSON index as written by {@link #writeJson(File, String, List, List)} */
+    private static final Pattern JSON_ENTRY = Pattern.compile("\\{(?:\"name\": \"((?:[^\"\\\\]|\\\\.)*)\", )?"
+        + "\"page\": (\\d+), \"diffCount\": (\\d+)(?:, \"file\": \"((?:[^\"\\\\]|\\\\.)*)\", "
+        + "\"x\": (-?\\d+), \"y\": (-?\\d+), \"width\": (\\d+), \"height\": (\\d+))?\\}");
+
+    private static class Entry {
+
+        final String name;
+
+        final int page;
+
+        final long diffCount;
+
+        final String file;
+
+        final Future<Rectangle> region;
+
+        Entry(final String name, final int page, final long diffCount, final String file,
+            final Future<Rectangle> region) {
+            this.name = name;
+            this.page = page;
+            this.diffCount = diffCount;
+            this.file = file;
+            this.region = region;
+        }
+
+    }
+
+    private final File dir;
+
+    private final boolean crop;
+
+    /** base name of the index files */
+    private final String index;
+
+    private final AsyncImageWriter writer;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * @param crop true to save only the region around the differences
+     * @param index base name of the index files, e.g. "index"
+     */
+    DiffExport(final String dir, final boolean crop, final String index) throws IOException {
+        this.dir = new File(dir);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Kann das Verzeichnis " + dir + " nicht anlegen");
+        }
+        this.crop = crop;
+        this.index = index;
+        this.writer = new AsyncImageWriter(
+            Integer.getInteger("pdfdiffer.export.writers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Float.parseFloat(System.getProperty("pdfdiffer.export.quality", "0.75")));
+    }
+
+    /**
+     * saves the diff image of the page, the image is given to release when it
+     * has been written
+     *
+     * @param name the compared document, to tell several comparisons apart,
+     *            or null
+     */
+    void add(final String name, final int page, final long diffCount, final BufferedImage diff,
+        final Consumer<BufferedImage> release) {
+        final String file = String.format("%spage-%04d.png",
+            name == null ? "" : name.replaceAll("[^A-Za-z0-9._-]", "_") + "-", page + 1);
+        final Future<Rectangle> region = this.writer.write(diff, new File(this.dir, file), this.crop, release);
+        synchronized (this.entries) {
+            this.entries.add(new Entry(name, page, diffCount, file, region));
+        }
+    }
+
+    /**
+     * waits for all images and writes the index
+     */
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+        final List<Entry> written;
+        synchronized (this.entries) {
+            written = new ArrayList<>(this.entries);
+        }
+        writeIndex(this.dir, this.index, written);
+    }
+
+    /**
+     * combines the indexes written into the directory by several exports, for
+     * example by the shards of one comparison, to one index and deletes them
+     *
+     * @param indexes base names of the indexes to combine
+     * @param index base name of the combined index
+     */
+    static void combine(final String dir, final List<String> indexes, final String index) throws IOException {
+        final File directory = new File(dir);
+        final List<Entry> combined = new ArrayList<>();
+        for (final String part : indexes) {
+            final File json = new File(directory, part + ".json");
+            for (final String line : Files.readAllLines(json.toPath(), StandardCharsets.UTF_8)) {
+                final Matcher matcher = JSON_ENTRY.matcher(line);
+                if (!matcher.find()) {
+                    continue;
+                }
+                final Rectangle region = matcher.group(4) == null ? null
+                    : new Rectangle(Integer.parseInt(matcher.group(5)), Integer.parseInt(matcher.group(6)),
+                        Integer.parseInt(matcher.group(7)), Integer.parseInt(matcher.group(8)));
+                combined.add(new Entry(matcher.group(1) == null ? null : unescapeJson(matcher.group(1)),
+                    Integer.parseInt(matcher.group(2)) - 1, Long.parseLong(matcher.group(3)),
+                    matcher.group(4) == null ? null : unescapeJson(matcher.group(4)),
+                    CompletableFuture.completedFuture(region)));
+            }
+        }
+        writeIndex(directory, index, combined);
+        for (final String part : indexes) {
+            if (!part.equals(index)) {
+                Files.deleteIfExists(new File(directory, part + ".json").toPath());
+                Files.deleteIfExists(new File(directory, part + ".html").toPath());
+            }
+        }
+    }
+
+    /**
+     * waits for the images of the entries and writes the index
+     */
+    private static void writeIndex(final File dir, final String index, final List<Entry> entries)
+        throws IOException {
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing((final Entry entry) -> entry.name == null ? "" : entry.name)
+            .thenComparingInt(entry -> entry.page));
+        final List<Rectangle> regions = new ArrayList<>();
+        int failed = 0;
+        for (final Entry entry : sorted) {
+            Rectangle region = null;
+            try {
+                region = entry.region.get();
+            } catch (final ExecutionException e) {
+                LOGGER.error("Fehler beim Schreiben von " + entry.file, e.getCause());
+                failed++;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Export abgebrochen", e);
+            }
+            regions.add(region);
+        }
+        writeJson(dir, index, sorted, regions);
+        writeHtml(dir, index, sorted, regions);
+        if (failed > 0) {
+            throw new IOException(failed + " Diff-Bilder konnten nicht geschrieben werden");
+        }
+    }
+
+    private static void writeJson(final File dir, final String index, final List<Entry> sorted,
+        final List<Rectangle> regions) throws IOException {
+        try (PrintStream out = new PrintStream(new File(dir, index + ".json"), "UTF-8")) {
+            out.println("{");
+            out.println("  \"pages\": [");
+            for (int i = 0; i < sorted.size(); i++) {
+                final Entry entry = sorted.get(i);
+                final Rectangle region = regions.get(i);
+                out.print("    {");
+                if (entry.name != null) {
+                    out.print("\"name\": \"" + escapeJson(entry.name) + "\", ");
+                }
+                out.print("\"page\": " + (entry.page + 1) + ", \"diffCount\": " + entry.diffCount);
+                if (region != null) {
+                    out.print(", \"file\": \"" + escapeJson(entry.file) + "\", \"x\": " + region.x + ", \"y\": "
+                        + region.y + ", \"width\": " + region.width + ", \"height\": " + region.height);
+                }
+                out.println(i < sorted.size() - 1 ? "}," : "}");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static void writeHtml(final File dir, final String index, final List<Entry> sorted,
+        final List<Rectangle> regions) throws IOException {
+        try (PrintStream out = new PrintStream(new File(dir, index + ".html"), "UTF-8")) {
+            out.println("<!DOCTYPE html>");
+            out.println("<html><head><meta charset=\"UTF-8\"><title>PDF-Differ</title></head><body>");
+            out.println("<table border=\"1\" cellpadding=\"4\">");
+            out.println("<tr><th>Dokument</th><th>Seite</th><th>Pixel</th><th>Bild</th></tr>");
+            for (int i = 0; i < sorted.size(); i++) {
+                final Entry entry = sorted.get(i);
+                final Rectangle region = regions.get(i);
+                out.print("<tr><td>" + (entry.name == null ? "" : escapeHtml(entry.name)) + "</td><td>"
+                    + (entry.page + 1) + "</td><td>" + entry.diffCount + "</td><td>");
+                if (region != null) {
+                    final String file = escapeHtml(entry.file);
+                    out.print("<a href=\"" + file + "\"><img src=\"" + file + "\" width=\""
+                        + Math.min(region.width, 400) + "\"></a>");
+                }
+                out.println("</td></tr>");
+            }
+            out.println("</table>");
+            out.println("</body></html>");
+        }
+    }
+
+    private static String escapeJson(final String s) {
+        final StringBuilder sb = new StringBuilder();
+        for (final char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescapeJson(final String s) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+            } else if (s.charAt(++i) == 'u' && i + 4 < s.length()) {
+                sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                i += 4;
+            } else {
+                sb.append(s.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escapeHtml(final String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+}
@@ -0,0 +1,323 @@
+package de.schrell.pdftools;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Detects that the new document is the old one with an incremental update
+ * appended (form fills, signatures, annotations) and finds the pages that
+ * reach one of the objects written by the update. All other pages render
+ * exactly as before and need not be compared.
+ */
+@SuppressWarnings("nls")
+class IncrementalUpdate {
+
+    private final static Logger LOGGER = LogManager.getLogger(IncrementalUpdate.class);
+
+    private static final Pattern STARTXREF = Pattern.compile("startxref\\s+(\\d+)");
+
+    private static final Pattern PREV = Pattern.compile("/Prev\\s+(\\d+)");
+
+    private static final int TAIL = 1024;
+
+    /** the entries a page inherits from the nodes of the page tree */
+    private static final COSName[] INHERITABLE = {
+        COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE
+    };
+
+    /** length of the old document, every object behind it was written by an update */
+    private final long oldLength;
+
+    private IncrementalUpdate(final long oldLength) {
+        this.oldLength = oldLength;
+    }
+
+    /**
+     * @return the update or null, if the new file does not start with the
+     *         old one or its xref chain does not continue the old one
+     */
+    static IncrementalUpdate detect(final String oldPdf, final String newPdf) throws IOException {
+        final File oldFile = new File(oldPdf);
+        final File newFile = new File(newPdf);
+        final long oldLength = oldFile.length();
+        if (newFile.length() <= oldLength || !startsWith(newFile, oldFile)) {
+            return null;
+        }
+        final long oldStartXref = lastStartXref(oldFile);
+        if (oldStartXref < 0) {
+            return null;
+        }
+        final String appended = readFrom(newFile, oldLength);
+        final Matcher prev = PREV.matcher(appended);
+        while (prev.find()) {
+            if (Long.parseLong(prev.group(1)) == oldStartXref) {
+                LOGGER.info(newPdf + " is an incremental update of " + oldPdf);
+                return new IncrementalUpdate(oldLength);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The documents may be shared with other jobs and PDFBox parses objects
+     * lazily, so each one is only read while holding the monitor of its
+     * imager, like {@link PdfImager#convertToImage(int, java.awt.geom.Rectangle2D)}. The
+     * monitors are taken one after the other, never nested.
+     *
+     * @return the indices of all pages of the new document that reference an
+     *         object written by the update, directly or indirectly
+     */
+    Set<Integer> changedPages(final PdfImager oldImager, final PdfImager newImager) {
+        final List<COSObjectKey> oldPages;
+        final Map<COSObjectKey, COSBase[]> oldInheritables = new HashMap<>();
+        synchronized (oldImager) {
+            final List<COSObject> oldPageObjects = new ArrayList<>();
+            final Map<COSObjectKey, COSDictionary> oldNodes = new HashMap<>();
+            collectPages(oldImager.getDocument(), oldPageObjects, oldNodes);
+            oldPages = keys(oldPageObjects);
+            for (final Map.Entry<COSObjectKey, COSDictionary> node : oldNodes.entrySet()) {
+                oldInheritables.put(node.getKey(), inheritables(node.getValue()));
+            }
+        }
+        synchronized (newImager) {
+            return this.changedPages(oldPages, oldInheritables, newImager.getDocument());
+        }
+    }
+
+    private Set<Integer> changedPages(final List<COSObjectKey> oldPages,
+        final Map<COSObjectKey, COSBase[]> oldInheritables, final PDDocument newDocument) {
+        final Set<COSObjectKey> changed = this.changedObjects(newDocument);
+        final List<COSObject> pages = new ArrayList<>();
+        final Map<COSObjectKey, COSDictionary> nodes = new HashMap<>();
+        collectPages(newDocument, pages, nodes);
+        final Set<Integer> changedPages = new HashSet<>();
+        if (!oldPages.equals(keys(pages))) {
+            // pages were added, removed or moved, so the indices do not match
+            for (int i = 0; i < pages.size(); i++) {
+                changedPages.add(i);
+            }
+            return changedPages;
+        }
+        // writers often rewrite the page tree nodes, that only matters for inherited entries
+        for (final Map.Entry<COSObjectKey, COSDictionary> node : nodes.entrySet()) {
+            final COSBase[] oldNode = oldInheritables.get(node.getKey());
+            if (oldNode != null && sameInheritables(oldNode, node.getValue())) {
+                changed.remove(node.getKey());
+            }
+        }
+        for (int i = 0; i < pages.size(); i++) {
+            final Set<COSObjectKey> reachable = new HashSet<>();
+            collectReferences(pages.get(i), reachable);
+            for (final COSObjectKey key : reachable) {
+                if (changed.contains(key)) {
+                    changedPages.add(i);
+                    break;
+                }
+            }
+        }
+        LOGGER.info(changed.size() + " objects and " + changedPages.size() + " of " + pages.size()
+            + " pages changed by the update");
+        return changedPages;
+    }
+
+    private Set<COSObjectKey> changedObjects(final PDDocument newDocument) {
+        final Map<COSObjectKey, Long> xref = newDocument.getDocument().getXrefTable();
+        final Set<COSObjectKey> changed = new HashSet<>();
+        for (final Map.Entry<COSObjectKey, Long> entry : xref.entrySet()) {
+            long offset = entry.getValue();
+            if (offset < 0) {
+                // compressed object, -offset is the number of its object stream
+                final Long streamOffset = xref.get(new COSObjectKey(-offset, 0));
+                offset = streamOffset == null ? Long.MAX_VALUE : streamOffset;
+            }
+            if (offset >= this.oldLength) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private static void collectPages(final PDDocument document, final List<COSObject> pages,
+        final Map<COSObjectKey, COSDictionary> nodes) {
+        final COSBase root = document.getDocumentCatalog().getCOSObject().getItem(COSName.PAGES);
+        collectPages(root, pages, nodes);
+    }
+
+    /**
+     * collects the leaves of the page tree in document order and the inner
+     * nodes by their keys
+     */
+    private static void collectPages(final COSBase node, final List<COSObject> pages,
+        final Map<COSObjectKey, COSDictionary> nodes) {
+        if (!(node instanceof COSObject)) {
+            return;
+        }
+        final COSObject object = (COSObject) node;
+        final COSObjectKey key = new COSObjectKey(object);
+        if (nodes.containsKey(key) || !(object.getObject() instanceof COSDictionary)) {
+            return;
+        }
+        final COSDictionary dict = (COSDictionary) object.getObject();
+        final COSBase kids = dict.getDictionaryObject(COSName.KIDS);
+        if (kids instanceof COSArray) {
+            nodes.put(key, dict);
+            for (final COSBase kid : (COSArray) kids) {
+                collectPages(kid, pages, nodes);
+            }
+        } else {
+            pages.add(object);
+        }
+    }
+
+    private static List<COSObjectKey> keys(final List<COSObject> objects) {
+        final List<COSObjectKey> keys = new ArrayList<>();
+        for (final COSObject object : objects) {
+            keys.add(new COSObjectKey(object));
+        }
+        return keys;
+    }
+
+    /**
+     * the inheritable entries of a page tree node as stored, without resolving
+     * indirect ones
+     */
+    private static COSBase[] inheritables(final COSDictionary node) {
+        final COSBase[] values = new COSBase[INHERITABLE.length];
+        for (int i = 0; i < INHERITABLE.length; i++) {
+            values[i] = node.getItem(INHERITABLE[i]);
+        }
+        return values;
+    }
+
+    private static boolean sameInheritables(final COSBase[] oldValues, final COSDictionary newNode) {
+        for (int i = 0; i < INHERITABLE.length; i++) {
+            if (!sameValue(oldValues[i], newNode.getItem(INHERITABLE[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * compares direct values, indirect ones only by their keys
+     */
+    private static boolean sameValue(final COSBase a, final COSBase b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a instanceof COSObject && b instanceof COSObject) {
+            return new COSObjectKey((COSObject) a).equals(new COSObjectKey((COSObject) b));
+        }
+        if (a instanceof COSArray && b instanceof COSArray) {
+            final COSArray arrayA = (COSArray) a;
+            final COSArray arrayB = (COSArray) b;
+            if (arrayA.size() != arrayB.size()) {
+                return false;
+            }
+            for (int i = 0; i < arrayA.size(); i++) {
+                if (!sameValue(arrayA.get(i), arrayB.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof COSDictionary && b instanceof COSDictionary) {
+            final COSDictionary dictA = (COSDictionary) a;
+            final COSDictionary dictB = (COSDictionary) b;
+            if (!dictA.keySet().equals(dictB.keySet())) {
+                return false;
+            }
+            for (final COSName name : dictA.keySet()) {
+                if (!sameValue(dictA.getItem(name), dictB.getItem(name))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * collects everything reachable from a page, including the inherited
+     * attributes of its parents but not their other kids
+     */
+    private static void collectReferences(final COSBase base, final Set<COSObjectKey> keys) {
+        COSBase value = base;
+        if (value instanceof COSObject) {
+            final COSObject object = (COSObject) value;
+            if (!keys.add(new COSObjectKey(object))) {
+                return;
+            }
+            value = object.getObject();
+        }
+        if (value instanceof COSDictionary) {
+            final COSDictionary dict = (COSDictionary) value;
+            final boolean pagesNode = COSName.PAGES.equals(dict.getCOSName(COSName.TYPE));
+            for (final Map.Entry<COSName, COSBase> entry : dict.entrySet()) {
+                if (!pagesNode || !COSName.KIDS.equals(entry.getKey())) {
+                    collectReferences(entry.getValue(), keys);
+                }
+            }
+        } else if (value instanceof COSArray) {
+            for (final COSBase item : (COSArray) value) {
+                collectReferences(item, keys);
+            }
+        }
+    }
+
+    private static boolean startsWith(final File file, final File prefix) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()));
+            InputStream inPrefix = new BufferedInputStream(Files.newInputStream(prefix.toPath()))) {
+            int b;
+            while ((b = inPrefix.read()) >= 0) {
+                if (b != in.read()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static long lastStartXref(final File file) throws IOException {
+        final String tail = readFrom(file, Math.max(0, file.length() - TAIL));
+        final Matcher matcher = STARTXREF.matcher(tail);
+        long startXref = -1;
+        while (matcher.find()) {
+            startXref = Long.parseLong(matcher.group(1));
+        }
+        return startXref;
+    }
+
+    private static String readFrom(final File file, final long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final byte[] bytes = new byte[(int) (raf.length() - offset)];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package de.schrell.pdftools;
+
+import java.util.List;
+
+/**
+ * Verdict for one page of a comparison together with the number of
+ * differing pixels.
+ */
+@SuppressWarnings("nls")
+class PageVerdict {
+
+    final int page;
+
+    final Verdict verdict;
+
+    final long diffCount;
+
+    PageVerdict(final int page, final Verdict verdict, final long diffCount) {
+        this.page = page;
+        this.verdict = verdict;
+        this.diffCount = diffCount;
+    }
+
+    boolean isSame() {
+        return this.verdict == Verdict.SAME || this.verdict == Verdict.UNCHANGED;
+    }
+
+    @Override
+    public String toString() {
+        return (this.page + 1) + " " + this.verdict + " " + this.diffCount;
+    }
+
+    /**
+     * reads the result of {@link #toString()}
+     */
+    static PageVerdict parse(final String line) {
+        final String[] fields = line.trim().split(" ");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("keine Seite: " + line);
+        }
+        return new PageVerdict(Integer.parseInt(fields[0]) - 1, Verdict.valueOf(fields[1]), Long.parseLong(fields[2]));
+    }
+
+    /**
+     * one line per page and a final line "result SAME|DIFF"
+     */
+    static String report(final List<PageVerdict> verdicts) {
+        final StringBuilder sb = new StringBuilder();
+        boolean same = true;
+        for (final PageVerdict verdict : verdicts) {
+            sb.append(verdict).append('\n');
+            same &= verdict.isSame();
+        }
+        sb.append("result ").append(same ? Verdict.SAME : Verdict.DIFF).append('\n');
+        return sb.toString();
+    }
+
+    static boolean allSame(final List<PageVerdict> verdicts) {
+        for (final PageVerdict verdict : verdicts) {
+            if (!verdict.isSame()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,191 @@
+package de.schrell.pdftools;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import de.schrell.image.DiffMask;
+import de.schrell.image.ImageDiffer;
+import de.schrell.image.ImagePool;
+
+/**
+ * Compares two documents page by page without user interface.
+ */
+class PdfComparator {
+
+    private final PdfImager imagerForOldPdf;
+    private final PdfImager imagerForNewPdf;
+
+    /** pages touched by an incremental update, null to compare all pages */
+    private Set<Integer> changedPages;
+
+    /** regions to compare or ignore, null for whole pages */
+    private final RegionMasks masks;
+
+    /** diff images, given back by {@link #release(ImageDiffer)} */
+    private final ImagePool pool = new ImagePool(4);
+
+    /** where the diff images of differing pages are saved, or null */
+    private DiffExport export;
+
+    /** name of this comparison in the export */
+    private String exportName;
+
+    PdfComparator(final PdfImager imagerForOldPdf, final PdfImager imagerForNewPdf) {
+        this(imagerForOldPdf, imagerForNewPdf, null);
+    }
+
+    PdfComparator(final PdfImager imagerForOldPdf, final PdfImager imagerForNewPdf, final RegionMasks masks) {
+        this.imagerForOldPdf = imagerForOldPdf;
+        this.imagerForNewPdf = imagerForNewPdf;
+        this.masks = masks;
+    }
+
+    /**
+     * restricts rendering to the pages touched by the update, if the new
+     * document is an incremental update of the old one
+     */
+    void detectIncrementalUpdate(final String oldPdf, final String newPdf) throws IOException {
+        final IncrementalUpdate update = IncrementalUpdate.detect(oldPdf, newPdf);
+        this.changedPages = update == null ? null
+            : update.changedPages(this.imagerForOldPdf, this.imagerForNewPdf);
+    }
+
+    /**
+     * saves the diff images of the differing pages found by
+     * {@link #compare(int, BufferedImage)}
+     *
+     * @param name tells this comparison apart from others in the same export,
+     *            or null
+     */
+    void exportDiffs(final DiffExport export, final String name) {
+        this.export = export;
+        this.exportName = name;
+    }
+
+    /**
+     * number of pages of the longer document
+     */
+    int getNumberOfPages() {
+        return Math.max(this.imagerForOldPdf.getNumberOfPages(), this.imagerForNewPdf.getNumberOfPages());
+    }
+
+    /**
+     * compares all pages
+     */
+    List<PageVerdict> compare() throws IOException {
+        return this.compare(0, this.getNumberOfPages());
+    }
+
+    /**
+     * compares the pages from (inclusive) to (exclusive)
+     */
+    List<PageVerdict> compare(final int from, final int to) throws IOException {
+        final List<PageVerdict> verdicts = new ArrayList<>();
+        for (int page = from; page < to; page++) {
+            verdicts.add(this.compare(page));
+        }
+        return verdicts;
+    }
+
+    PageVerdict compare(final int page) throws IOException {
+        return this.compare(page, null);
+    }
+
+    /**
+     * @param biOld the page of the old document from {@link #renderOld(int)},
+     *            or null to render it here
+     */
+    PageVerdict compare(final int page, final BufferedImage biOld) throws IOException {
+        if (page >= this.imagerForNewPdf.getNumberOfPages()) {
+            return new PageVerdict(page, Verdict.ONLY_OLD, 0);
+        }
+        if (page >= this.imagerForOldPdf.getNumberOfPages()) {
+            return new PageVerdict(page, Verdict.ONLY_NEW, 0);
+        }
+        if (this.changedPages != null && !this.changedPages.contains(page)) {
+            return new PageVerdict(page, Verdict.UNCHANGED, 0);
+        }
+        if (!this.isSameSize(page)) {
+            return new PageVerdict(page, Verdict.SIZE, 0);
+        }
+        final ImageDiffer differ = biOld == null ? this.diff(page) : this.diff(page, biOld);
+        final PageVerdict verdict = new PageVerdict(page, differ.hasDiffs() ? Verdict.DIFF : Verdict.SAME,
+            differ.getDiffCount());
+        if (this.export != null && differ.hasDiffs()) {
+            // the export gives the diff image back when it is written
+            this.export.add(this.exportName, page, differ.getDiffCount(), differ.getDiff(), this.pool::release);
+        } else {
+            this.release(differ);
+        }
+        return verdict;
+    }
+
+    /**
+     * true if the page of both documents renders to images of the same size,
+     * otherwise it cannot be diffed
+     */
+    boolean isSameSize(final int page) {
+        final Rectangle2D region = this.getRegion(page);
+        return this.imagerForOldPdf.getImageSize(page, region)
+            .equals(this.imagerForNewPdf.getImageSize(page, region));
+    }
+
+    /**
+     * renders the page of both documents, restricted to the include regions,
+     * and compares them outside the ignore regions. The diff image is pooled,
+     * give it back with {@link #release(ImageDiffer)}.
+     *
+     * @throws IllegalArgumentException if the pages differ in size, see
+     *             {@link #isSameSize(int)}
+     */
+    ImageDiffer diff(final int page) throws IOException {
+        final BufferedImage biOld = this.renderOld(page);
+        try {
+            return this.diff(page, biOld);
+        } finally {
+            this.releaseOld(biOld);
+        }
+    }
+
+    /**
+     * like {@link #diff(int)} with the old page already rendered, so that it
+     * can be compared with several new documents. The old page is only read.
+     */
+    ImageDiffer diff(final int page, final BufferedImage biOld) throws IOException {
+        final Rectangle2D region = this.getRegion(page);
+        final BufferedImage biNew = this.imagerForNewPdf.convertToImage(page, region);
+        final DiffMask mask = this.masks == null ? null
+            : this.masks.createMask(page, this.imagerForOldPdf.getImageTransform(page, region), biOld.getWidth());
+        try {
+            return new ImageDiffer(biOld, biNew, mask, this.pool);
+        } finally {
+            this.imagerForNewPdf.release(biNew);
+        }
+    }
+
+    /**
+     * renders the page of the old document as needed by
+     * {@link #diff(int, BufferedImage)}, give it back with
+     * {@link #releaseOld(BufferedImage)}
+     */
+    BufferedImage renderOld(final int page) throws IOException {
+        return this.imagerForOldPdf.convertToImage(page, this.getRegion(page));
+    }
+
+    void releaseOld(final BufferedImage biOld) {
+        this.imagerForOldPdf.release(biOld);
+    }
+
+    private Rectangle2D getRegion(final int page) {
+        return this.masks == null ? null : this.masks.getIncludeBounds(page);
+    }
+
+    void release(final ImageDiffer differ) {
+        this.pool.release(differ.getDiff());
+    }
+
+}
@@ -1,7 +1,21 @@
 package de.schrell.pdftools;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,7 +27,6 @@ import de.schrell.image.ImageDiffer;
 import javafx.application.Platform;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.HPos;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
@@ -27,6 +40,9 @@ import javafx.scene.control.ScrollPane.ScrollBarPolicy;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.ColumnConstraints;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
@@ -51,6 +67,12 @@ public class PdfDiffer {
 
     private final ImageView image = new ImageView();
 
+    /** the image of the view, only replaced if the page size changes */
+    private WritableImage fxImage;
+
+    /** one row of pixels on the way to the view */
+    private int[] row = new int[0];
+
     private volatile int pageNo;
 
     private final Label infoLine = new Label("INFOZEILE");
@@ -61,17 +83,42 @@ public class PdfDiffer {
 
     private volatile ScrollPane scrollPane;
 
-    private final PdfImager imagerForOldPdf;
-    private final PdfImager imagerForNewPdf;
+    private final String oldPdf;
+    private final String newPdf;
+    private final RenderMode mode;
+    private final boolean incremental;
+    private final RegionMasks masks;
+
+    /** pages touched by an incremental update, null if all pages may differ */
+    private volatile Set<Integer> changedPages;
+
+    private volatile PdfImager imagerForOldPdf;
+    private volatile PdfImager imagerForNewPdf;
+    private volatile PdfComparator comparator;
 
     private final FirstLineService service = new FirstLineService(this);
 
     /**
      * Konstruktor.
      */
-    public PdfDiffer(final String pdf1, final String pdf2) throws IOException {
-        this.imagerForOldPdf = new PdfImager(pdf1);
-        this.imagerForNewPdf = new PdfImager(pdf2);
+    public PdfDiffer(final String pdf1, final String pdf2) {
+        this(pdf1, pdf2, RenderMode.RGB, false, null);
+    }
+
+    /**
+     * Konstruktor mit Farbtiefe für das Rendern. Die Dokumente werden erst
+     * in {@link #setup(GridPane)} im Hintergrund geöffnet. Ist incremental
+     * gesetzt und das neue Dokument eine inkrementelle Änderung des alten,
+     * überspringt die Suche nach Unterschieden alle nicht betroffenen Seiten.
+     * Sind masks gesetzt, werden nur deren Regionen gerendert und verglichen.
+     */
+    PdfDiffer(final String pdf1, final String pdf2, final RenderMode mode, final boolean incremental,
+        final RegionMasks masks) {
+        this.oldPdf = pdf1;
+        this.newPdf = pdf2;
+        this.mode = mode;
+        this.incremental = incremental;
+        this.masks = masks;
         this.image.setSmooth(true);
         this.image.setPreserveRatio(true);
         this.image.setCache(true);
@@ -87,11 +134,12 @@ public class PdfDiffer {
 
     /**
      * this method calls the external tool and displays the image. Mainly to
-     * have the exception handling bound here.
+     * have the exception handling bound here. The page is rendered on the
+     * calling thread, the view is changed on the FX thread.
      */
     private synchronized boolean display() {
 
-        if (this.pageNo >= this.maxPage() || this.pageNo < 0 ) {
+        if (!this.isLoaded() || this.pageNo >= this.maxPage() || this.pageNo < 0 ) {
             return false;
         }
 
@@ -100,21 +148,104 @@ public class PdfDiffer {
             return hasRed;
         } catch (final Throwable e) {
             LOGGER.error("Fehler beim Einlesen eines Seiten-Bildes", e);
-            FxHelper.createMessageDialog(
-                AlertType.ERROR,
-                "Einlesefehler",
-                "Fehler beim Einlesen eines Seiten-Bildes", e).showAndWait();
-            System.exit(1);
+            Platform.runLater(() -> {
+                FxHelper.createMessageDialog(
+                    AlertType.ERROR,
+                    "Einlesefehler",
+                    "Fehler beim Einlesen eines Seiten-Bildes", e).showAndWait();
+                System.exit(1);
+            });
         }
 
         return false;
 
     }
 
+    private boolean isLoaded() {
+        return this.imagerForOldPdf != null && this.imagerForNewPdf != null;
+    }
+
+    /**
+     * opens both documents in parallel in the background and displays the
+     * first page as soon as both are there. The first page is rendered on
+     * the loader thread, see {@link #display()}.
+     */
+    private void load() {
+        this.infoLine.setText("Lade " + this.oldPdf + " und " + this.newPdf + " ...");
+        final ExecutorService loader = Executors.newFixedThreadPool(2, runnable -> {
+            final Thread thread = new Thread(runnable, "PDFDiffer-Loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final CompletableFuture<PdfImager> oldImager = CompletableFuture.supplyAsync(() -> this.open(this.oldPdf), loader);
+        final CompletableFuture<PdfImager> newImager = CompletableFuture.supplyAsync(() -> this.open(this.newPdf), loader);
+        oldImager.thenAcceptBoth(newImager, (imagerOld, imagerNew) -> {
+            this.imagerForOldPdf = imagerOld;
+            this.imagerForNewPdf = imagerNew;
+            this.comparator = new PdfComparator(imagerOld, imagerNew, this.masks);
+            this.pageNo = 0;
+            this.display();
+            if (this.incremental) {
+                this.detectIncrementalUpdate();
+            }
+        }).whenComplete((result, e) -> {
+            loader.shutdown();
+            if (e != null) {
+                LOGGER.error("Fehler beim Öffnen der PDF-Dateien", e);
+                Platform.runLater(() -> {
+                    FxHelper.createMessageDialog(
+                        AlertType.ERROR,
+                        "Einlesefehler",
+                        "Fehler beim Öffnen der PDF-Dateien", e).showAndWait();
+                    System.exit(1);
+                });
+            }
+        });
+    }
+
+    /**
+     * only an optimisation, on errors all pages are compared
+     */
+    private void detectIncrementalUpdate() {
+        try {
+            final IncrementalUpdate update = IncrementalUpdate.detect(this.oldPdf, this.newPdf);
+            if (update != null) {
+                this.changedPages = update.changedPages(this.imagerForOldPdf, this.imagerForNewPdf);
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Fehler beim Erkennen einer inkrementellen Änderung, alle Seiten werden verglichen", e);
+            this.changedPages = null;
+        }
+    }
+
+    /**
+     * true if the page is known to be untouched by an incremental update
+     */
+    private boolean isUnchanged(final int n) {
+        final Set<Integer> changed = this.changedPages;
+        return changed != null
+            && n < this.imagerForOldPdf.getNumberOfPages()
+            && n < this.imagerForNewPdf.getNumberOfPages()
+            && !changed.contains(n);
+    }
+
+    private PdfImager open(final String pdf) {
+        try {
+            final PdfImager imager = new PdfImager(pdf, this.mode);
+            LOGGER.info("opened " + pdf);
+            return imager;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * calculates the number of pages regarding display type
      */
     private int maxPage() {
+        if (!this.isLoaded()) {
+            return 0;
+        }
         switch (this.radioButtonGroup.getValue()) {
             case OLD:
                 return this.imagerForOldPdf.getNumberOfPages();
@@ -143,6 +274,9 @@ public class PdfDiffer {
                 protected Void call() {
                     while(FirstLineService.this.differ.pageNo < FirstLineService.this.differ.maxPage()) {
                         FirstLineService.this.differ.pageNo++;
+                        if (FirstLineService.this.differ.isUnchanged(FirstLineService.this.differ.pageNo)) {
+                            continue;
+                        }
                         if (FirstLineService.this.differ.display()) {
                             break;
                         }
@@ -195,11 +329,14 @@ public class PdfDiffer {
     }
 
     private boolean displayDiffImage(final int n) throws IOException {
-        final BufferedImage biOld = this.imagerForOldPdf.convertToImage(n);
-        final BufferedImage biNew = this.imagerForNewPdf.convertToImage(n);
-        final ImageDiffer differ = new ImageDiffer(biOld, biNew);
-        final Image imageDiff = SwingFXUtils.toFXImage(differ.getDiff(), null);
-        this.image.setImage(imageDiff);
+        if (!this.comparator.isSameSize(n)) {
+            // nothing to diff, show the new page and stop the search here
+            LOGGER.info("Seite " + (n + 1) + " hat unterschiedliche Größen, zeige die neue Seite");
+            this.displayNewImage(n);
+            return true;
+        }
+        final ImageDiffer differ = this.comparator.diff(n);
+        this.show(differ.getDiff(), () -> this.comparator.release(differ));
         LOGGER.info("displayed image for page " + this.pageNo);
         if (differ.hasDiffs()) {
             LOGGER.info("ROT auf Seite: " + (n + 1));
@@ -209,14 +346,114 @@ public class PdfDiffer {
 
     private void displayNewImage(final int n) throws IOException {
         final BufferedImage biNew = this.imagerForNewPdf.convertToImage(n);
-        final Image imageNew = SwingFXUtils.toFXImage(biNew, null);
-        this.image.setImage(imageNew);
+        this.show(biNew, () -> this.imagerForNewPdf.release(biNew));
     }
 
     private void displayOldImage(final int n) throws IOException {
         final BufferedImage biOld = this.imagerForOldPdf.convertToImage(n);
-        final Image imageOld = SwingFXUtils.toFXImage(biOld, null);
-        this.image.setImage(imageOld);
+        this.show(biOld, () -> this.imagerForOldPdf.release(biOld));
+    }
+
+    /**
+     * shows the image on the FX thread and gives it back by release when it
+     * has been copied into the view
+     */
+    private void show(final BufferedImage bi, final Runnable release) {
+        Platform.runLater(() -> {
+            try {
+                this.image.setImage(this.toFXImage(bi));
+            } finally {
+                release.run();
+            }
+        });
+    }
+
+    /**
+     * copies the image into the FX image of the view, only on the FX thread.
+     * The pixels are written directly or row by row through one buffer, so
+     * that no page sized image is allocated per page.
+     */
+    private Image toFXImage(final BufferedImage bi) {
+        final int width = bi.getWidth();
+        final int height = bi.getHeight();
+        if (this.fxImage == null || this.fxImage.getWidth() != width || this.fxImage.getHeight() != height) {
+            this.fxImage = new WritableImage(width, height);
+        }
+        if (this.row.length < width) {
+            this.row = new int[width];
+        }
+        final PixelWriter writer = this.fxImage.getPixelWriter();
+        final WritableRaster raster = bi.getRaster();
+        final SampleModel sampleModel = raster.getSampleModel();
+        final ColorModel colorModel = bi.getColorModel();
+        // position of pixel (0, 0) in the data buffer
+        final int x0 = -raster.getSampleModelTranslateX();
+        final int y0 = -raster.getSampleModelTranslateY();
+        if ((bi.getType() == BufferedImage.TYPE_INT_RGB || bi.getType() == BufferedImage.TYPE_INT_ARGB)
+            && sampleModel instanceof SinglePixelPackedSampleModel) {
+            final SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            final int stride = packed.getScanlineStride();
+            final int offset = raster.getDataBuffer().getOffset() + packed.getOffset(x0, y0);
+            if (bi.getType() == BufferedImage.TYPE_INT_ARGB) {
+                writer.setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, offset, stride);
+                return this.fxImage;
+            }
+            for (int y = 0; y < height; y++) {
+                final int start = offset + y * stride;
+                for (int x = 0; x < width; x++) {
+                    this.row[x] = data[start + x] | 0xFF000000;
+                }
+                writer.setPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), this.row, 0, width);
+            }
+        } else if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY && sampleModel instanceof ComponentSampleModel) {
+            final ComponentSampleModel component = (ComponentSampleModel) sampleModel;
+            final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            final int stride = component.getScanlineStride();
+            final int offset = raster.getDataBuffer().getOffset() + component.getOffset(x0, y0);
+            for (int y = 0; y < height; y++) {
+                final int start = offset + y * stride;
+                for (int x = 0; x < width; x++) {
+                    final int gray = data[start + x] & 0xFF;
+                    this.row[x] = 0xFF000000 | gray << 16 | gray << 8 | gray;
+                }
+                writer.setPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), this.row, 0, width);
+            }
+        } else if (colorModel instanceof IndexColorModel && sampleModel instanceof ComponentSampleModel
+            && raster.getDataBuffer() instanceof DataBufferByte) {
+            final ComponentSampleModel component = (ComponentSampleModel) sampleModel;
+            final int[] palette = new int[((IndexColorModel) colorModel).getMapSize()];
+            ((IndexColorModel) colorModel).getRGBs(palette);
+            writer.setPixels(0, 0, width, height, PixelFormat.createByteIndexedInstance(palette),
+                ((DataBufferByte) raster.getDataBuffer()).getData(),
+                raster.getDataBuffer().getOffset() + component.getOffset(x0, y0), component.getScanlineStride());
+        } else if (colorModel instanceof IndexColorModel && sampleModel instanceof MultiPixelPackedSampleModel
+            && raster.getDataBuffer() instanceof DataBufferByte) {
+            final MultiPixelPackedSampleModel packed = (MultiPixelPackedSampleModel) sampleModel;
+            final int[] palette = new int[((IndexColorModel) colorModel).getMapSize()];
+            ((IndexColorModel) colorModel).getRGBs(palette);
+            final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            final int bits = packed.getPixelBitStride();
+            final int mask = (1 << bits) - 1;
+            final int stride = packed.getScanlineStride();
+            final int offset = raster.getDataBuffer().getOffset() + packed.getOffset(x0, y0);
+            final int bitOffset = packed.getBitOffset(x0);
+            for (int y = 0; y < height; y++) {
+                final int start = offset + y * stride;
+                for (int x = 0; x < width; x++) {
+                    final int bit = bitOffset + x * bits;
+                    final int index = data[start + (bit >> 3)] >> (8 - bits - (bit & 7)) & mask;
+                    this.row[x] = palette[index];
+                }
+                writer.setPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), this.row, 0, width);
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                bi.getRGB(0, y, width, 1, this.row, 0, width);
+                writer.setPixels(0, y, width, 1, PixelFormat.getIntArgbInstance(), this.row, 0, width);
+            }
+        }
+        return this.fxImage;
     }
 
     /**
@@ -259,7 +496,7 @@ public class PdfDiffer {
 
         this.registerKeys(root);
 
-        this.display();
+        this.load();
 
     }
 
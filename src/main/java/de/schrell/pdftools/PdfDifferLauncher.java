@@ -0,0 +1,29 @@
+package de.schrell.pdftools;
+
+/**
+ * Main class. The modes without user interface are started from here,
+ * because a main class derived from {@link javafx.application.Application}
+ * needs a display before main is even called.
+ */
+@SuppressWarnings("nls")
+public class PdfDifferLauncher {
+
+    public static void main(final String[] args) throws Exception {
+        for (final String arg : args) {
+            if (arg.equals("--server") || arg.startsWith("--server=")) {
+                final int eq = arg.indexOf('=');
+                PdfDifferServer.run(eq < 0 ? PdfDifferServer.DEFAULT_PORT : Integer.parseInt(arg.substring(eq + 1)));
+                return;
+            }
+            if (arg.startsWith("--baseline=")) {
+                System.exit(BaselineComparison.run(args));
+            }
+            if (arg.startsWith("--shard=") || arg.startsWith("--pages=") || arg.startsWith("--shards=")
+                || arg.equals("--merge")) {
+                System.exit(ShardedComparison.run(args));
+            }
+        }
+        PdfDifferMain.main(args);
+    }
+
+}
@@ -3,6 +3,8 @@ package de.schrell.pdftools;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.jar.Manifest;
 
 import org.apache.logging.log4j.LogManager;
@@ -34,17 +36,23 @@ public class PdfDifferMain extends Application {
     @Override
     public void start(final Stage primaryStage) throws Exception {
 
-        if (this.getParameters() == null || this.getParameters().getRaw().size() != 2) {
-            LOGGER.error("Aufruf: java -jar PdfDiffer.jar alt.pdf neu.pdf");
+        final List<String> files = this.getParameters() == null ? null
+            : this.getParameters().getUnnamed().stream().filter(arg -> !arg.startsWith("--")).collect(Collectors.toList());
+        if (files == null || files.size() != 2) {
+            LOGGER.error("Aufruf: java -jar PdfDiffer.jar [--render=RGB|GRAY|BINARY] [--incremental] [--mask=regionen.txt] alt.pdf neu.pdf");
             FxHelper.createMessageDialog(AlertType.ERROR, "Programm-Parameter vergessen?",
                 "Es müssen zwei PDF-Dateien zum Vergleich angegeben werden.").showAndWait();
             System.exit(1);
         }
 
         final String version = getVersion();
-        final String firstFile = this.getParameters().getRaw().get(0);
-        final String secondFile = this.getParameters().getRaw().get(1);
-        this.pdfDiffer = new PdfDiffer(firstFile, secondFile);
+        final String firstFile = files.get(0);
+        final String secondFile = files.get(1);
+        final RenderMode mode = getRenderMode(this.getParameters().getNamed().get("render"));
+        final boolean incremental = this.getParameters().getUnnamed().contains("--incremental");
+        final String maskFile = this.getParameters().getNamed().get("mask");
+        final RegionMasks masks = maskFile == null ? null : RegionMasks.load(maskFile);
+        this.pdfDiffer = new PdfDiffer(firstFile, secondFile, mode, incremental, masks);
 
         final GridPane gridPane = new GridPane();
         final Scene scene = new Scene(gridPane);
@@ -59,6 +67,18 @@ public class PdfDifferMain extends Application {
         primaryStage.show();
     }
 
+    static RenderMode getRenderMode(final String name) {
+        if (name == null) {
+            return RenderMode.RGB;
+        }
+        try {
+            return RenderMode.valueOf(name.toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            LOGGER.warn("Unbekannter Render-Modus " + name + ", verwende RGB");
+            return RenderMode.RGB;
+        }
+    }
+
     private static String getVersion() {
         String version = null;
         try {
@@ -0,0 +1,190 @@
+package de.schrell.pdftools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server mode without user interface. Keeps the JVM and recently used
+ * documents warm and answers comparison jobs on a local HTTP endpoint:
+ *
+ * <pre>
+ * GET http://localhost:8765/compare?old=alt.pdf&amp;new=neu.pdf[&amp;render=GRAY][&amp;incremental=true][&amp;mask=regionen.txt]
+ * </pre>
+ *
+ * The answer is plain text with one line "page verdict diffCount" per page and
+ * a final line "result SAME|DIFF". Jobs are run by a fixed number of workers
+ * from a bounded queue; a full queue is answered with 503.
+ */
+@SuppressWarnings("nls")
+public class PdfDifferServer implements AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(PdfDifferServer.class);
+
+    static final int DEFAULT_PORT = 8765;
+
+    /** how long {@link #close()} waits for running jobs */
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final HttpServer server;
+
+    private final ThreadPoolExecutor workers;
+
+    private final PdfImagerCache cache;
+
+    public PdfDifferServer(final int port) throws IOException {
+        final int threads = Integer.getInteger("pdfdiffer.server.workers", Runtime.getRuntime().availableProcessors());
+        final int queue = Integer.getInteger("pdfdiffer.server.queue", 4 * threads);
+        this.cache = new PdfImagerCache(Integer.getInteger("pdfdiffer.server.cache", 8));
+        final AtomicInteger threadNo = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queue),
+            runnable -> new Thread(runnable, "PDFDiffer-Worker-" + threadNo.incrementAndGet()),
+            new ThreadPoolExecutor.AbortPolicy());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/compare", this::handleCompare);
+    }
+
+    public void start() {
+        this.server.start();
+        LOGGER.info("PDF-Differ server listening on " + this.server.getAddress());
+    }
+
+    private void handleCompare(final HttpExchange exchange) throws IOException {
+        try {
+            final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            final String oldPdf = query.get("old");
+            final String newPdf = query.get("new");
+            if (oldPdf == null || newPdf == null) {
+                respond(exchange, 400,
+                    "Aufruf: /compare?old=alt.pdf&new=neu.pdf[&render=RGB|GRAY|BINARY][&incremental=true]"
+                    + "[&mask=regionen.txt]\n");
+                return;
+            }
+            final RenderMode mode;
+            try {
+                mode = RenderMode.valueOf(query.getOrDefault("render", RenderMode.RGB.name()).toUpperCase());
+            } catch (final IllegalArgumentException e) {
+                respond(exchange, 400, "Unbekannter Render-Modus " + query.get("render") + "\n");
+                return;
+            }
+            final boolean incremental = Boolean.parseBoolean(query.get("incremental"));
+            final String maskFile = query.get("mask");
+            final Future<String> job;
+            try {
+                job = this.workers.submit(() -> this.compare(oldPdf, newPdf, mode, incremental, maskFile));
+            } catch (final RejectedExecutionException e) {
+                respond(exchange, 503, "Warteschlange voll\n");
+                return;
+            }
+            respond(exchange, 200, job.get());
+        } catch (final ExecutionException e) {
+            LOGGER.error("Fehler beim Vergleich", e.getCause());
+            respond(exchange, 500, e.getCause() + "\n");
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Abgebrochen\n");
+        }
+    }
+
+    private String compare(final String oldPdf, final String newPdf, final RenderMode mode, final boolean incremental,
+        final String maskFile) throws IOException {
+        final long start = System.currentTimeMillis();
+        final RegionMasks masks = maskFile == null ? null : RegionMasks.load(maskFile);
+        final PdfImager imagerForOldPdf = this.cache.acquire(oldPdf, mode);
+        try {
+            final PdfImager imagerForNewPdf = this.cache.acquire(newPdf, mode);
+            try {
+                final PdfComparator comparator = new PdfComparator(imagerForOldPdf, imagerForNewPdf, masks);
+                if (incremental) {
+                    comparator.detectIncrementalUpdate(oldPdf, newPdf);
+                }
+                final List<PageVerdict> verdicts = comparator.compare();
+                LOGGER.info("compared " + oldPdf + " and " + newPdf + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+                return PageVerdict.report(verdicts);
+            } finally {
+                this.cache.release(imagerForNewPdf);
+            }
+        } finally {
+            this.cache.release(imagerForOldPdf);
+        }
+    }
+
+    private static Map<String, String> parseQuery(final String query) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (final String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                    URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String text) throws IOException {
+        final byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * stops accepting jobs and waits a while for the running ones before the
+     * documents are closed
+     */
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.workers.shutdown();
+        try {
+            if (!this.workers.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("Vergleiche nach " + CLOSE_TIMEOUT_SECONDS + " s noch nicht beendet, breche sie ab");
+                this.workers.shutdownNow();
+                this.workers.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (final InterruptedException e) {
+            this.workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        this.cache.close();
+    }
+
+    /**
+     * runs the server until the JVM is stopped
+     */
+    static void run(final int port) throws IOException {
+        final PdfDifferServer server = new PdfDifferServer(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.start();
+    }
+
+}
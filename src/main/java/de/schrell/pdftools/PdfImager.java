@@ -1,40 +1,183 @@
 package de.schrell.pdftools;
 
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.rendering.PDFRenderer;
 
+import de.schrell.image.ImagePool;
+
 /**
  * Stellt {@linke BufferedImage}s zu den PDF-Seiten bereit.
  */
 class PdfImager implements AutoCloseable {
 
+    private static final float DPI = 150;
+
+    private static final float SCALE = DPI / 72;
+
     private final PDPageTree list;
 
     private final PDFRenderer renderer;
 
     private final PDDocument document;
 
+    private final RenderMode mode;
+
+    /** page images, a few per page size are reused */
+    private final ImagePool pool = new ImagePool(4);
+
     public PdfImager(final String source) throws IOException {
+        this(source, RenderMode.RGB);
+    }
+
+    public PdfImager(final String source, final RenderMode mode) throws IOException {
         this.document = PDDocument.load(new File(source));
         this.list = this.document.getDocumentCatalog().getPages();
         this.renderer = new PDFRenderer(this.document);
+        this.mode = mode;
     }
 
     public int getNumberOfPages() {
         return this.list.getCount();
     }
 
+    /**
+     * The image is taken from a pool, give it back with
+     * {@link #release(BufferedImage)} when it is no longer needed.
+     */
     public BufferedImage convertToImage(final int page) throws IOException {
-        return this.renderer.renderImageWithDPI(page, 150);
+        return this.convertToImage(page, null);
+    }
+
+    /**
+     * Renders only the part of the page inside the region (PDF coordinates).
+     * The page is translated so that the region starts at the origin of a
+     * region sized image, everything outside falls off the raster.
+     * Synchronized because a document may be shared by several comparisons.
+     *
+     * @param region the region or null for the whole page
+     */
+    public synchronized BufferedImage convertToImage(final int page, final Rectangle2D region) throws IOException {
+        final Rectangle pixels = region == null ? this.getPageRegion(page) : this.getPixelRegion(page, region);
+        final BufferedImage image = this.pool.acquire(pixels.width, pixels.height, this.mode.bufferedImageType);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setBackground(Color.WHITE);
+            graphics.clearRect(0, 0, pixels.width, pixels.height);
+            graphics.translate(-pixels.x, -pixels.y);
+            this.renderer.renderPageToGraphics(page, graphics, SCALE);
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * @return the size of the image {@link #convertToImage(int, Rectangle2D)}
+     *         renders for the page and region, without rendering it
+     */
+    public synchronized Dimension getImageSize(final int page, final Rectangle2D region) {
+        return (region == null ? this.getPageRegion(page) : this.getPixelRegion(page, region)).getSize();
+    }
+
+    /**
+     * gives an image of {@link #convertToImage(int, Rectangle2D)} back for reuse
+     */
+    public void release(final BufferedImage image) {
+        this.pool.release(image);
+    }
+
+    /**
+     * Synchronized like {@link #convertToImage(int, Rectangle2D)}, reading the
+     * page may parse objects of the shared document.
+     *
+     * @return the transformation from PDF coordinates of the page to pixels
+     *         of the image rendered for the region (null for the whole page)
+     */
+    public synchronized AffineTransform getImageTransform(final int page, final Rectangle2D region) {
+        final AffineTransform transform = new AffineTransform();
+        if (region != null) {
+            final Rectangle pixels = this.getPixelRegion(page, region);
+            transform.translate(-pixels.x, -pixels.y);
+        }
+        transform.concatenate(this.getPageTransform(page));
+        return transform;
+    }
+
+    /**
+     * the whole page in pixels, sized like {@link PDFRenderer#renderImage(int, float)}
+     */
+    private Rectangle getPageRegion(final int page) {
+        final PDPage pdPage = this.document.getPage(page);
+        final PDRectangle cropBox = pdPage.getCropBox();
+        final int width = Math.round(cropBox.getWidth() * SCALE);
+        final int height = Math.round(cropBox.getHeight() * SCALE);
+        if (pdPage.getRotation() == 90 || pdPage.getRotation() == 270) {
+            return new Rectangle(0, 0, height, width);
+        }
+        return new Rectangle(0, 0, width, height);
+    }
+
+    /**
+     * the region in pixels of the whole page, at least one pixel
+     */
+    private Rectangle getPixelRegion(final int page, final Rectangle2D region) {
+        final Rectangle pixels = this.getPageTransform(page).createTransformedShape(region).getBounds()
+            .intersection(this.getPageRegion(page));
+        if (pixels.isEmpty()) {
+            return new Rectangle(0, 0, 1, 1);
+        }
+        return pixels;
+    }
+
+    /**
+     * the transformation of {@link PDFRenderer} and its page drawer
+     */
+    private AffineTransform getPageTransform(final int page) {
+        final PDPage pdPage = this.document.getPage(page);
+        final PDRectangle cropBox = pdPage.getCropBox();
+        final AffineTransform transform = AffineTransform.getScaleInstance(SCALE, SCALE);
+        final int rotation = pdPage.getRotation();
+        if (rotation != 0) {
+            switch (rotation) {
+                case 90:
+                    transform.translate(cropBox.getHeight(), 0);
+                    break;
+                case 270:
+                    transform.translate(0, cropBox.getWidth());
+                    break;
+                case 180:
+                    transform.translate(cropBox.getWidth(), cropBox.getHeight());
+                    break;
+                default:
+                    break;
+            }
+            transform.rotate(Math.toRadians(rotation));
+        }
+        transform.translate(0, cropBox.getHeight());
+        transform.scale(1, -1);
+        transform.translate(-cropBox.getLowerLeftX(), -cropBox.getLowerLeftY());
+        return transform;
+    }
+
+    PDDocument getDocument() {
+        return this.document;
     }
 
     @Override
-    public void close() throws Exception {
+    public void close() throws IOException {
         this.document.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,180 @@
+package de.schrell.pdftools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps recently used documents open. An imager is borrowed with
+ * {@link #acquire(String, RenderMode)} and must be given back with
+ * {@link #release(PdfImager)}. An imager is lent to one job at a time:
+ * rendering is synchronized per imager, so jobs sharing one imager would
+ * render its pages one after another. A job asking for a document whose open
+ * copies are all borrowed gets a copy of its own, so many jobs comparing with
+ * the same baseline render it in parallel; the capacity therefore counts open
+ * copies, not files. Unused imagers beyond the capacity are closed, least
+ * recently used first. A file that changed on disk is opened again.
+ * Documents are opened outside the lock of the cache, so that a large
+ * document does not block the jobs working with documents already open.
+ */
+@SuppressWarnings("nls")
+class PdfImagerCache implements AutoCloseable {
+
+    private final static Logger LOGGER = LogManager.getLogger(PdfImagerCache.class);
+
+    private static class Entry {
+
+        final String key;
+
+        final long lastModified;
+
+        /** a file rewritten within the resolution of lastModified mostly changes its length */
+        final long length;
+
+        /** null while the borrowing job opens the document */
+        PdfImager imager;
+
+        /** replaced by a newer version of the file */
+        boolean stale;
+
+        Entry(final String key, final long lastModified, final long length) {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        boolean isCurrent(final File file) {
+            return this.lastModified == file.lastModified() && this.length == file.length();
+        }
+
+    }
+
+    private final int capacity;
+
+    /** all open copies per file and render mode */
+    private final Map<String, List<Entry>> entries = new HashMap<>();
+
+    /** copies not borrowed, least recently used first */
+    private final LinkedHashSet<Entry> idle = new LinkedHashSet<>();
+
+    private final Map<PdfImager, Entry> borrowed = new HashMap<>();
+
+    private int size;
+
+    PdfImagerCache(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    PdfImager acquire(final String source, final RenderMode mode) throws IOException {
+        final File file = new File(source).getCanonicalFile();
+        final String key = file.getPath() + "|" + mode;
+        final Entry entry;
+        synchronized (this) {
+            final List<Entry> copies = this.entries.computeIfAbsent(key, k -> new ArrayList<>());
+            Entry free = null;
+            for (final Iterator<Entry> it = copies.iterator(); it.hasNext();) {
+                final Entry copy = it.next();
+                if (!copy.isCurrent(file)) {
+                    it.remove();
+                    this.size--;
+                    copy.stale = true;
+                    if (this.idle.remove(copy)) {
+                        closeImager(copy);
+                    }
+                } else if (free == null && this.idle.contains(copy)) {
+                    free = copy;
+                }
+            }
+            if (free != null) {
+                this.idle.remove(free);
+                this.borrowed.put(free.imager, free);
+                return free.imager;
+            }
+            entry = new Entry(key, file.lastModified(), file.length());
+            copies.add(entry);
+            this.size++;
+        }
+        LOGGER.info("opening " + file);
+        final PdfImager imager;
+        try {
+            imager = new PdfImager(file.getPath(), mode);
+        } catch (final IOException | RuntimeException e) {
+            synchronized (this) {
+                this.remove(entry);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            entry.imager = imager;
+            this.borrowed.put(imager, entry);
+            this.evict();
+        }
+        return imager;
+    }
+
+    synchronized void release(final PdfImager imager) {
+        final Entry entry = this.borrowed.remove(imager);
+        if (entry == null) {
+            return;
+        }
+        if (entry.stale) {
+            closeImager(entry);
+        } else {
+            this.idle.add(entry);
+        }
+        this.evict();
+    }
+
+    private void evict() {
+        final Iterator<Entry> it = this.idle.iterator();
+        while (this.size > this.capacity && it.hasNext()) {
+            final Entry entry = it.next();
+            it.remove();
+            this.remove(entry);
+            closeImager(entry);
+        }
+    }
+
+    private void remove(final Entry entry) {
+        final List<Entry> copies = this.entries.get(entry.key);
+        if (copies != null && copies.remove(entry)) {
+            this.size--;
+            if (copies.isEmpty()) {
+                this.entries.remove(entry.key);
+            }
+        }
+    }
+
+    private static void closeImager(final Entry entry) {
+        if (entry.imager == null) {
+            return;
+        }
+        try {
+            entry.imager.close();
+        } catch (final Exception e) {
+            LOGGER.warn("Fehler beim Schließen von " + entry.key, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (final List<Entry> copies : this.entries.values()) {
+            for (final Entry entry : copies) {
+                closeImager(entry);
+            }
+        }
+        this.entries.clear();
+        this.idle.clear();
+        this.borrowed.clear();
+        this.size = 0;
+    }
+
+}
@@ -0,0 +1,149 @@
+package de.schrell.pdftools;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.schrell.image.DiffMask;
+
+/**
+ * Regions of the pages to compare or to ignore, read from a text file with
+ * one region per line:
+ *
+ * <pre>
+ * # pages     type     x1  y1  x2  y2    (PDF points, origin bottom left)
+ * *           ignore   0   0   595 40
+ * 1-3,7,10-   include  50  50  545 800
+ * </pre>
+ *
+ * Pages are counted from 1, "*" means all pages. If a page has include
+ * regions, only their bounding box is rendered and only pixels inside them
+ * are compared. Pixels in ignore regions are never compared.
+ */
+@SuppressWarnings("nls")
+class RegionMasks {
+
+    private static class Region {
+
+        final String pages;
+
+        final boolean include;
+
+        final Rectangle2D rect;
+
+        Region(final String pages, final boolean include, final Rectangle2D rect) {
+            this.pages = pages;
+            this.include = include;
+            this.rect = rect;
+        }
+
+        boolean appliesTo(final int page) {
+            final int n = page + 1;
+            for (final String part : this.pages.split(",")) {
+                if (part.equals("*")) {
+                    return true;
+                }
+                final int dash = part.indexOf('-');
+                if (dash < 0) {
+                    if (Integer.parseInt(part) == n) {
+                        return true;
+                    }
+                } else {
+                    final int from = Integer.parseInt(part.substring(0, dash));
+                    final int to = dash == part.length() - 1 ? Integer.MAX_VALUE : Integer.parseInt(part.substring(dash + 1));
+                    if (n >= from && n <= to) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+    }
+
+    private final List<Region> regions = new ArrayList<>();
+
+    static RegionMasks load(final String file) throws IOException {
+        final RegionMasks masks = new RegionMasks();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                masks.regions.add(parse(line, file, lineNo));
+            }
+        }
+        return masks;
+    }
+
+    private static Region parse(final String line, final String file, final int lineNo) throws IOException {
+        final String[] fields = line.split("\\s+");
+        try {
+            if (fields.length != 6 || !fields[0].matches("\\*|[0-9]+(-[0-9]*)?(,[0-9]+(-[0-9]*)?)*")) {
+                throw new IllegalArgumentException();
+            }
+            final boolean include;
+            if (fields[1].equalsIgnoreCase("include")) {
+                include = true;
+            } else if (fields[1].equalsIgnoreCase("ignore")) {
+                include = false;
+            } else {
+                throw new IllegalArgumentException();
+            }
+            final double x1 = Double.parseDouble(fields[2]);
+            final double y1 = Double.parseDouble(fields[3]);
+            final double x2 = Double.parseDouble(fields[4]);
+            final double y2 = Double.parseDouble(fields[5]);
+            final Rectangle2D rect = new Rectangle2D.Double(
+                Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+            return new Region(fields[0], include, rect);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException(file + ", Zeile " + lineNo + ": ungültige Region '" + line + "'");
+        }
+    }
+
+    /**
+     * @return the bounding box of the include regions of the page or null,
+     *         if the whole page is compared
+     */
+    Rectangle2D getIncludeBounds(final int page) {
+        Rectangle2D bounds = null;
+        for (final Region region : this.regions) {
+            if (region.include && region.appliesTo(page)) {
+                if (bounds == null) {
+                    bounds = (Rectangle2D) region.rect.clone();
+                } else {
+                    bounds.add(region.rect);
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @param transform from PDF coordinates of the page to pixels of the image
+     */
+    DiffMask createMask(final int page, final AffineTransform transform, final int width) {
+        final List<Rectangle> includes = new ArrayList<>();
+        final List<Rectangle> ignores = new ArrayList<>();
+        for (final Region region : this.regions) {
+            if (region.appliesTo(page)) {
+                final Rectangle pixels = transform.createTransformedShape(region.rect).getBounds();
+                (region.include ? includes : ignores).add(pixels);
+            }
+        }
+        return new DiffMask(width, includes, ignores);
+    }
+
+}
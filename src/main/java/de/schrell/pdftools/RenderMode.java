@@ -0,0 +1,25 @@
+package de.schrell.pdftools;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Colour depth used to render the pages. GRAY and BINARY need a quarter
+ * resp. a thirty-second of the memory of RGB and are diffed by specialized
+ * kernels in {@link de.schrell.image.ImageDiffer}.
+ */
+enum RenderMode {
+
+    RGB(BufferedImage.TYPE_INT_RGB),
+
+    GRAY(BufferedImage.TYPE_BYTE_GRAY),
+
+    BINARY(BufferedImage.TYPE_BYTE_BINARY);
+
+    /** the type of the images the pages are rendered into */
+    final int bufferedImageType;
+
+    RenderMode(final int bufferedImageType) {
+        this.bufferedImageType = bufferedImageType;
+    }
+
+}
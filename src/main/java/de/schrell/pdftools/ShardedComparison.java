@@ -0,0 +1,333 @@
+package de.schrell.pdftools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.schrell.tools.TempDir;
+
+/**
+ * Splits the comparison of one document pair into page ranges, so that it can
+ * be spread over several processes or machines:
+ *
+ * <pre>
+ * java -jar PdfDiffer.jar --shard=2/8 [--out=teil2.txt] [--render=..] [--mask=..] [--incremental] [--export=..] alt.pdf neu.pdf
+ * java -jar PdfDiffer.jar --pages=101-200 [--out=..] ... alt.pdf neu.pdf
+ * java -jar PdfDiffer.jar --merge [--out=ergebnis.txt] teil1.txt teil2.txt ...
+ * java -jar PdfDiffer.jar --shards=8 [--render=..] [--mask=..] [--incremental] [--export=..] alt.pdf neu.pdf
+ * </pre>
+ *
+ * Shard k of n gets the k-th of n contiguous page ranges of equal length.
+ * A partial result starts with the lines "old", "new", "pages" and "range"
+ * followed by the page verdicts; the merge checks that all parts belong to
+ * the same documents and cover every page exactly once. "--shards" is a
+ * local coordinator, which starts one JVM per shard and merges their parts.
+ * With --export=verzeichnis [--export-crop] every shard saves the diff images
+ * of its pages and an index named after its page range, see
+ * {@link DiffExport}; the local coordinator combines them to one index.
+ */
+@SuppressWarnings("nls")
+class ShardedComparison {
+
+    private final static Logger LOGGER = LogManager.getLogger(ShardedComparison.class);
+
+    /** base name of the export index of all pages */
+    private static final String EXPORT_INDEX = "index";
+
+    /**
+     * @return the base name of the export index of a shard, from and to
+     *         1-based and inclusive
+     */
+    private static String getExportIndex(final int from, final int to) {
+        return String.format(EXPORT_INDEX + "-%04d-%04d", from, to);
+    }
+
+    /** first page (inclusive) and last page (exclusive), 0-based */
+    private static int[] getRange(final String shard, final String pages, final int numberOfPages) {
+        if (shard != null) {
+            final String[] kn = shard.split("/");
+            if (kn.length != 2) {
+                throw new IllegalArgumentException("ungültiger Shard: " + shard);
+            }
+            final int k = Integer.parseInt(kn[0]);
+            final int n = Integer.parseInt(kn[1]);
+            if (n < 1 || k < 1 || k > n) {
+                throw new IllegalArgumentException("ungültiger Shard: " + shard);
+            }
+            return new int[] {
+                (int) ((long) (k - 1) * numberOfPages / n), (int) ((long) k * numberOfPages / n) };
+        }
+        final int dash = pages.indexOf('-');
+        final int from = Integer.parseInt(dash < 0 ? pages : pages.substring(0, dash));
+        final int to = dash < 0 ? from
+            : dash == pages.length() - 1 ? numberOfPages : Integer.parseInt(pages.substring(dash + 1));
+        if (from < 1 || to < from) {
+            throw new IllegalArgumentException("ungültiger Seitenbereich: " + pages);
+        }
+        return new int[] { Math.min(from - 1, numberOfPages), Math.min(to, numberOfPages) };
+    }
+
+    /**
+     * compares the page range of the shard and writes the partial result
+     *
+     * @return true if all pages of the range match
+     */
+    static boolean compareRange(final String oldPdf, final String newPdf, final String shard, final String pages,
+        final RenderMode mode, final boolean incremental, final RegionMasks masks, final String exportDir,
+        final boolean crop, final PrintStream out) throws Exception {
+        try (PdfImager imagerForOldPdf = new PdfImager(oldPdf, mode);
+            PdfImager imagerForNewPdf = new PdfImager(newPdf, mode)) {
+            final PdfComparator comparator = new PdfComparator(imagerForOldPdf, imagerForNewPdf, masks);
+            if (incremental) {
+                comparator.detectIncrementalUpdate(oldPdf, newPdf);
+            }
+            final int numberOfPages = comparator.getNumberOfPages();
+            final int[] range = getRange(shard, pages, numberOfPages);
+            final List<PageVerdict> verdicts;
+            try (DiffExport export = exportDir == null ? null : new DiffExport(exportDir, crop,
+                range[0] == 0 && range[1] == numberOfPages ? EXPORT_INDEX
+                    : getExportIndex(range[0] + 1, range[1]))) {
+                comparator.exportDiffs(export, null);
+                verdicts = comparator.compare(range[0], range[1]);
+            }
+            out.println("old " + oldPdf);
+            out.println("new " + newPdf);
+            out.println("pages " + numberOfPages);
+            out.println("range " + (range[0] + 1) + " " + range[1]);
+            for (final PageVerdict verdict : verdicts) {
+                out.println(verdict);
+            }
+            return PageVerdict.allSame(verdicts);
+        }
+    }
+
+    /**
+     * combines the partial results to the verdicts of all pages
+     */
+    static List<PageVerdict> merge(final List<String> parts) throws IOException {
+        String oldPdf = null;
+        String newPdf = null;
+        PageVerdict[] verdicts = null;
+        for (final String part : parts) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(part), StandardCharsets.UTF_8)) {
+                final String partOld = header(reader, "old", part);
+                final String partNew = header(reader, "new", part);
+                final int numberOfPages = Integer.parseInt(header(reader, "pages", part));
+                final String[] range = header(reader, "range", part).split(" ");
+                if (verdicts == null) {
+                    oldPdf = partOld;
+                    newPdf = partNew;
+                    verdicts = new PageVerdict[numberOfPages];
+                } else if (!partOld.equals(oldPdf) || !partNew.equals(newPdf) || numberOfPages != verdicts.length) {
+                    throw new IOException(part + ": gehört nicht zum Vergleich von " + oldPdf + " und " + newPdf);
+                }
+                final int from = Integer.parseInt(range[0]) - 1;
+                final int to = Integer.parseInt(range[1]);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    final PageVerdict verdict = PageVerdict.parse(line);
+                    if (verdict.page < from || verdict.page >= to) {
+                        throw new IOException(part + ": Seite " + (verdict.page + 1) + " außerhalb des Bereichs");
+                    }
+                    if (verdicts[verdict.page] != null) {
+                        throw new IOException(part + ": Seite " + (verdict.page + 1) + " doppelt");
+                    }
+                    verdicts[verdict.page] = verdict;
+                }
+            } catch (final IllegalArgumentException e) {
+                throw new IOException(part + ": " + e.getMessage(), e);
+            }
+        }
+        if (verdicts == null) {
+            throw new IOException("keine Teilergebnisse");
+        }
+        for (int page = 0; page < verdicts.length; page++) {
+            if (verdicts[page] == null) {
+                throw new IOException("Seite " + (page + 1) + " fehlt in den Teilergebnissen");
+            }
+        }
+        return Arrays.asList(verdicts);
+    }
+
+    private static String header(final BufferedReader reader, final String key, final String part)
+        throws IOException {
+        final String line = reader.readLine();
+        if (line == null || !line.startsWith(key + " ")) {
+            throw new IOException(part + ": Zeile '" + key + "' erwartet");
+        }
+        return line.substring(key.length() + 1);
+    }
+
+    /**
+     * @return the base name of the export index written by the shard of the
+     *         partial result
+     */
+    private static String getExportIndex(final String part) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(part), StandardCharsets.UTF_8)) {
+            header(reader, "old", part);
+            header(reader, "new", part);
+            final int numberOfPages = Integer.parseInt(header(reader, "pages", part));
+            final String[] range = header(reader, "range", part).split(" ");
+            final int from = Integer.parseInt(range[0]);
+            final int to = Integer.parseInt(range[1]);
+            return from == 1 && to == numberOfPages ? EXPORT_INDEX : getExportIndex(from, to);
+        }
+    }
+
+    /**
+     * starts one JVM per shard with the same class path and merges their
+     * partial results, and their export indexes if exportDir is not null
+     */
+    static List<PageVerdict> coordinate(final int shards, final List<String> options, final String exportDir,
+        final String oldPdf, final String newPdf) throws IOException, InterruptedException {
+        final File dir = TempDir.createTempDir("pdfdiffer-shards-");
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final List<Process> processes = new ArrayList<>();
+        final List<String> parts = new ArrayList<>();
+        try {
+            for (int k = 1; k <= shards; k++) {
+                final String part = new File(dir, "shard-" + k + ".txt").getPath();
+                final List<String> command = new ArrayList<>(Arrays.asList(java, "-cp",
+                    System.getProperty("java.class.path"), PdfDifferLauncher.class.getName(),
+                    "--shard=" + k + "/" + shards, "--out=" + part));
+                command.addAll(options);
+                command.add(oldPdf);
+                command.add(newPdf);
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+                parts.add(part);
+            }
+            for (int k = 0; k < shards; k++) {
+                final int exitCode = processes.get(k).waitFor();
+                if (exitCode > 1) {
+                    throw new IOException("Shard " + (k + 1) + "/" + shards + " ist mit " + exitCode + " beendet");
+                }
+            }
+        } finally {
+            for (final Process process : processes) {
+                process.destroy();
+            }
+        }
+        final List<PageVerdict> verdicts = merge(parts);
+        if (exportDir != null) {
+            final List<String> indexes = new ArrayList<>();
+            for (final String part : parts) {
+                indexes.add(getExportIndex(part));
+            }
+            DiffExport.combine(exportDir, indexes, EXPORT_INDEX);
+        }
+        return verdicts;
+    }
+
+    /**
+     * runs the shard, the merge or the coordinator for the command line
+     * arguments
+     *
+     * @return the exit code, 0 if all pages match, 1 if not, 2 on errors
+     */
+    static int run(final String[] args) {
+        String shard = null;
+        String pages = null;
+        int shards = 0;
+        boolean merge = false;
+        String outFile = null;
+        String render = null;
+        String maskFile = null;
+        boolean incremental = false;
+        String exportDir = null;
+        boolean crop = false;
+        final List<String> files = new ArrayList<>();
+        final List<String> options = new ArrayList<>();
+        try {
+            for (final String arg : args) {
+                if (arg.startsWith("--shard=")) {
+                    shard = arg.substring("--shard=".length());
+                } else if (arg.startsWith("--pages=")) {
+                    pages = arg.substring("--pages=".length());
+                } else if (arg.startsWith("--shards=")) {
+                    shards = Integer.parseInt(arg.substring("--shards=".length()));
+                } else if (arg.equals("--merge")) {
+                    merge = true;
+                } else if (arg.startsWith("--out=")) {
+                    outFile = arg.substring("--out=".length());
+                } else if (arg.startsWith("--render=")) {
+                    render = arg.substring("--render=".length());
+                    options.add(arg);
+                } else if (arg.startsWith("--mask=")) {
+                    maskFile = arg.substring("--mask=".length());
+                    options.add(arg);
+                } else if (arg.startsWith("--export=")) {
+                    exportDir = arg.substring("--export=".length());
+                    options.add(arg);
+                } else if (arg.equals("--export-crop")) {
+                    crop = true;
+                    options.add(arg);
+                } else if (arg.equals("--incremental")) {
+                    incremental = true;
+                    options.add(arg);
+                } else if (!arg.startsWith("--")) {
+                    files.add(arg);
+                }
+            }
+        } catch (final NumberFormatException e) {
+            shards = -1;
+        }
+        if (shards < 0 || (merge ? files.isEmpty() : files.size() != 2)) {
+            LOGGER.error("Aufruf: java -jar PdfDiffer.jar --shard=k/n|--pages=von-bis [--out=teil.txt] "
+                + "[--render=RGB|GRAY|BINARY] [--mask=regionen.txt] [--incremental] "
+                + "[--export=verzeichnis [--export-crop]] alt.pdf neu.pdf\n"
+                + "       java -jar PdfDiffer.jar --merge [--out=ergebnis.txt] teil1.txt teil2.txt ...\n"
+                + "       java -jar PdfDiffer.jar --shards=n [--render=..] [--mask=..] [--incremental] [--export=..] "
+                + "alt.pdf neu.pdf");
+            return 2;
+        }
+        final long start = System.currentTimeMillis();
+        PrintStream out = System.out;
+        try {
+            if (outFile != null) {
+                out = new PrintStream(Files.newOutputStream(Paths.get(outFile)), false, "UTF-8");
+            }
+            final boolean same;
+            if (merge || shards > 0) {
+                final List<PageVerdict> verdicts = merge ? merge(files)
+                    : coordinate(shards, options, exportDir, files.get(0), files.get(1));
+                out.print(PageVerdict.report(verdicts));
+                same = PageVerdict.allSame(verdicts);
+            } else {
+                same = compareRange(files.get(0), files.get(1), shard, pages == null ? "1-" : pages,
+                    PdfDifferMain.getRenderMode(render), incremental,
+                    maskFile == null ? null : RegionMasks.load(maskFile), exportDir, crop, out);
+            }
+            LOGGER.info((merge ? "merged " + files.size() + " parts" : "compared " + files.get(0) + " and "
+                + files.get(1) + (shard == null ? "" : " shard " + shard) + (pages == null ? "" : " pages " + pages)
+                + (shards > 0 ? " in " + shards + " shards" : "")) + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+            return same ? 0 : 1;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 2;
+        } catch (final Exception e) {
+            LOGGER.error("Fehler beim Vergleich", e);
+            return 2;
+        } finally {
+            if (out != System.out) {
+                out.close();
+            } else {
+                out.flush();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package de.schrell.pdftools;
+
+/**
+ * Result of the comparison of one page
+ */
+enum Verdict {
+
+    SAME,
+
+    DIFF,
+
+    /** not rendered because the page is untouched by an incremental update */
+    UNCHANGED,
+
+    /** the pages differ in size and cannot be compared pixel by pixel */
+    SIZE,
+
+    ONLY_OLD,
+
+    ONLY_NEW;
+
+}